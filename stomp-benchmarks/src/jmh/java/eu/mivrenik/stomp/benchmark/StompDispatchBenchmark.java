@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.benchmark;
+
+import eu.mivrenik.stomp.StompFrame;
+import eu.mivrenik.stomp.client.StompClient;
+import eu.mivrenik.stomp.client.listener.StompMessageListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inbound path of {@link StompClient#onMessage}: decoding, subscription lookup and inline dispatch, without a socket.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StompDispatchBenchmark {
+    private static final int MESSAGES = 1024;
+
+    @Param({"10", "1000", "100000"})
+    public int subscriptions;
+
+    @Param({"128", "4096"})
+    public int payloadSize;
+
+    private StompClient client;
+    private final String[] texts = new String[MESSAGES];
+    private final ByteBuffer[] buffers = new ByteBuffer[MESSAGES];
+    private int next;
+    long received;
+
+    @Setup
+    public void setUp() {
+        client = new StompClient(URI.create("ws://localhost")) {
+            @Override
+            protected void sendEncodedFrame(ByteBuffer frame, boolean binary) {
+                // Not connected, SUBSCRIBE frames are discarded
+            }
+        };
+        StompMessageListener listener = new StompMessageListener() {
+            @Override
+            public void onMessage(StompFrame stompFrame) {
+                received++;
+            }
+        };
+        int[] ids = new int[subscriptions];
+        for (int i = 0; i < subscriptions; i++) {
+            ids[i] = client.subscribe("/topic/" + i, listener).getId();
+        }
+
+        String body = Payloads.text(payloadSize);
+        Random random = new Random(42);
+        for (int i = 0; i < MESSAGES; i++) {
+            int index = random.nextInt(subscriptions);
+            texts[i] = "MESSAGE\nsubscription:" + ids[index] + "\nmessage-id:" + i + "\ndestination:/topic/" + index
+                    + "\ncontent-length:" + payloadSize + "\n\n" + body + "\0";
+            buffers[i] = ByteBuffer.wrap(texts[i].getBytes(Charset.forName("UTF-8")));
+        }
+    }
+
+    @Benchmark
+    public long onTextMessage() {
+        client.onMessage(texts[advance()]);
+        return received;
+    }
+
+    @Benchmark
+    public long onBinaryMessage() {
+        client.onMessage(buffers[advance()].duplicate());
+        return received;
+    }
+
+    private int advance() {
+        next = (next + 1) & (MESSAGES - 1);
+        return next;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.benchmark;
+
+import eu.mivrenik.stomp.StompFrame;
+import eu.mivrenik.stomp.broker.StompBroker;
+import eu.mivrenik.stomp.client.StompClient;
+import eu.mivrenik.stomp.client.listener.StompMessageListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publish and consume through a real WebSocket connection to an in-process broker on the loopback interface.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StompEndToEndBenchmark {
+    /**
+     * Messages published per throughput invocation before waiting for all of them to arrive.
+     */
+    private static final int BATCH = 256;
+
+    private static final String DESTINATION = "/topic/benchmark";
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    @Param({"16", "1024", "16384"})
+    public int payloadSize;
+
+    @Param({"false", "true"})
+    public boolean asyncSend;
+
+    private StompBroker broker;
+    private StompClient client;
+    private String payload;
+    private final AtomicLong received = new AtomicLong();
+    private long sent;
+
+    @Setup
+    public void setUp() throws Exception {
+        broker = new StompBroker(new InetSocketAddress("127.0.0.1", 0));
+        broker.start();
+        if (!broker.awaitStart(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Loopback broker did not start");
+        }
+        client = new StompClient(URI.create("ws://127.0.0.1:" + broker.getPort()));
+        if (asyncSend) {
+            client.enableAsyncSend(64 * 1024, 0, TimeUnit.MILLISECONDS);
+        }
+        if (!client.connectBlocking()) {
+            throw new IllegalStateException("Could not connect to the loopback broker");
+        }
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (!client.isStompConnected()) {
+            checkDeadline(deadline);
+            LockSupport.parkNanos(100000);
+        }
+        client.subscribe(DESTINATION, new StompMessageListener() {
+            @Override
+            public void onMessage(StompFrame stompFrame) {
+                received.incrementAndGet();
+            }
+        });
+        payload = Payloads.text(payloadSize);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.closeBlocking();
+        broker.stop();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    public long publishConsume() {
+        for (int i = 0; i < BATCH; i++) {
+            client.send(DESTINATION, payload);
+        }
+        sent += BATCH;
+        return awaitReceived();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long roundTrip() {
+        client.send(DESTINATION, payload);
+        sent++;
+        return awaitReceived();
+    }
+
+    private long awaitReceived() {
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        long count;
+        while ((count = received.get()) < sent) {
+            checkDeadline(deadline);
+            Thread.yield();
+        }
+        return count;
+    }
+
+    private static void checkDeadline(long deadline) {
+        if (System.nanoTime() - deadline > 0) {
+            throw new IllegalStateException("Loopback broker did not respond in time");
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.benchmark;
+
+import eu.mivrenik.stomp.StompCommand;
+import eu.mivrenik.stomp.StompFrame;
+import eu.mivrenik.stomp.StompFrameDecoder;
+import eu.mivrenik.stomp.StompFrameEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame decoding and encoding across payload and header sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StompFrameCodecBenchmark {
+    @Param({"0", "128", "4096", "65536"})
+    public int payloadSize;
+
+    @Param({"1", "8", "32"})
+    public int headerCount;
+
+    private StompFrame frame;
+    private String text;
+    private ByteBuffer bytes;
+    private StompFrameEncoder encoder;
+    private StompFrameDecoder decoder;
+
+    @Setup
+    public void setUp() {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("destination", "/topic/benchmark");
+        for (int i = 1; i < headerCount; i++) {
+            headers.put("x-header-" + i, "value-" + i);
+        }
+        frame = new StompFrame(StompCommand.MESSAGE, headers, Payloads.text(payloadSize));
+        text = frame.toString();
+        bytes = frame.encode();
+        encoder = new StompFrameEncoder();
+        decoder = new StompFrameDecoder();
+    }
+
+    @Benchmark
+    public StompFrame fromString() {
+        return StompFrame.fromString(text);
+    }
+
+    @Benchmark
+    public StompFrame decode() {
+        return StompFrame.decode(bytes.duplicate());
+    }
+
+    @Benchmark
+    public String decodeWithBody() {
+        return StompFrame.decode(bytes.duplicate()).getBody();
+    }
+
+    @Benchmark
+    public List<StompFrame> decodeStream() {
+        return decoder.decode(bytes.duplicate());
+    }
+
+    @Benchmark
+    public String encodeString() {
+        return frame.toString();
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        return encoder.encode(frame);
+    }
+}
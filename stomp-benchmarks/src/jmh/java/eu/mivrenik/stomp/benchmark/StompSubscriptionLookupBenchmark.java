@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.benchmark;
+
+import eu.mivrenik.stomp.client.StompSubscription;
+import eu.mivrenik.stomp.client.StompSubscriptionRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Subscription lookup by id, as done for every MESSAGE, and by destination.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StompSubscriptionLookupBenchmark {
+    /**
+     * Size of the pre-generated random key sequence, a power of two.
+     */
+    private static final int KEYS = 4096;
+
+    @Param({"10", "1000", "100000"})
+    public int subscriptions;
+
+    private StompSubscriptionRegistry registry;
+    private final int[] ids = new int[KEYS];
+    private final String[] destinations = new String[KEYS];
+
+    @Setup
+    public void setUp() {
+        registry = new StompSubscriptionRegistry();
+        int[] registered = new int[subscriptions];
+        for (int i = 0; i < subscriptions; i++) {
+            StompSubscription subscription = new StompSubscription(registry.nextId(), "/topic/" + i, null);
+            registry.add(subscription);
+            registered[i] = subscription.getId();
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < KEYS; i++) {
+            int index = random.nextInt(subscriptions);
+            ids[i] = registered[index];
+            destinations[i] = "/topic/" + index;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int advance() {
+            next = (next + 1) & (KEYS - 1);
+            return next;
+        }
+    }
+
+    @Benchmark
+    public StompSubscription byId(Cursor cursor) {
+        return registry.get(ids[cursor.advance()]);
+    }
+
+    @Benchmark
+    public List<StompSubscription> byDestination(Cursor cursor) {
+        return registry.get(destinations[cursor.advance()]);
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.broker;
+
+import eu.mivrenik.stomp.StompCommand;
+import eu.mivrenik.stomp.StompFrame;
+import eu.mivrenik.stomp.StompFrameEncoder;
+import eu.mivrenik.stomp.StompHeader;
+import org.java_websocket.WebSocket;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lightweight in-memory STOMP 1.2 broker over WebSocket, meant as a local stand-in for tests and load tests.
+ * <p>
+ * Supports CONNECT/STOMP, SUBSCRIBE, UNSUBSCRIBE, SEND, ACK, NACK, DISCONNECT, receipts and heart-beats. Every
+ * destination is a topic: a SEND is delivered as MESSAGE to all current subscriptions of its destination, in the same
+ * kind of WebSocket message (text or binary) it arrived in. Nothing is persisted, and acknowledgements are only
+ * tracked, never redelivered.
+ */
+public class StompBroker extends WebSocketServer {
+    private static final String VERSION = "1.2";
+
+    /**
+     * Heart-beat check resolution in milliseconds.
+     */
+    private static final long HEARTBEAT_TICK = 50;
+
+    /**
+     * Error margin applied to the incoming heart-beat interval.
+     */
+    private static final int HEARTBEAT_TOLERANCE = 2;
+
+    private static final byte[] EOL = {'\n'};
+
+    private static final ThreadLocal<StompFrameEncoder> ENCODER = new ThreadLocal<StompFrameEncoder>() {
+        @Override
+        protected StompFrameEncoder initialValue() {
+            return new StompFrameEncoder();
+        }
+    };
+
+    private final Map<WebSocket, StompBrokerSession> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Subscriptions by destination, replaced on every change and guarded by itself for writes.
+     */
+    private final Map<String, StompBrokerSubscription[]> topics = new ConcurrentHashMap<>();
+
+    private final AtomicLong nextMessageId = new AtomicLong();
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong messagesDelivered = new AtomicLong();
+    private final AtomicLong messagesAcknowledged = new AtomicLong();
+
+    private final CountDownLatch started = new CountDownLatch(1);
+    /**
+     * Server error raised before the broker started listening, e.g. the port being in use.
+     */
+    private volatile Exception startFailure;
+    private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "stomp-broker-heartbeat");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Heart-beat intervals offered to clients in milliseconds: minimum outgoing and desired incoming.
+     */
+    private volatile long heartbeatOutgoing;
+    private volatile long heartbeatIncoming;
+
+    /**
+     * @param address address to listen on, port 0 for any free port
+     */
+    public StompBroker(InetSocketAddress address) {
+        super(address);
+        setReuseAddr(true);
+    }
+
+    /**
+     * Offer heart-beating to connecting clients.
+     *
+     * @param outgoingInterval smallest interval the broker guarantees between writes, 0 for none (default)
+     * @param incomingInterval desired interval between reads, 0 for none (default)
+     * @param unit             unit of the intervals
+     */
+    public void setHeartbeat(long outgoingInterval, long incomingInterval, TimeUnit unit) {
+        if (outgoingInterval < 0 || incomingInterval < 0) {
+            throw new IllegalArgumentException("Negative heart-beat interval");
+        }
+        this.heartbeatOutgoing = unit.toMillis(outgoingInterval);
+        this.heartbeatIncoming = unit.toMillis(incomingInterval);
+    }
+
+    /**
+     * Wait until the broker is listening.
+     *
+     * @param timeout maximum time to wait
+     * @param unit    unit of {@code timeout}
+     * @return {@code true} if the broker has started
+     * @throws InterruptedException  if interrupted while waiting
+     * @throws IllegalStateException if the broker failed to start, with the failure as its cause
+     */
+    public boolean awaitStart(long timeout, TimeUnit unit) throws InterruptedException {
+        boolean done = started.await(timeout, unit);
+        Exception failure = startFailure;
+        if (failure != null) {
+            throw new IllegalStateException("Broker failed to start", failure);
+        }
+        return done;
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived.get();
+    }
+
+    public long getMessagesDelivered() {
+        return messagesDelivered.get();
+    }
+
+    public long getMessagesAcknowledged() {
+        return messagesAcknowledged.get();
+    }
+
+    @Override
+    public void onStart() {
+        heartbeats.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkHeartbeats();
+            }
+        }, HEARTBEAT_TICK, HEARTBEAT_TICK, TimeUnit.MILLISECONDS);
+        started.countDown();
+    }
+
+    @Override
+    public void stop(int timeout) throws InterruptedException {
+        heartbeats.shutdownNow();
+        super.stop(timeout);
+    }
+
+    @Override
+    public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        sessions.put(conn, new StompBrokerSession(conn));
+    }
+
+    @Override
+    public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        StompBrokerSession session = sessions.remove(conn);
+        if (session != null) {
+            for (StompBrokerSubscription subscription : session.subscriptions.values()) {
+                removeFromTopic(subscription);
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, String message) {
+        StompBrokerSession session = sessions.get(conn);
+        if (session == null) {
+            return;
+        }
+        session.lastReadNanos = System.nanoTime();
+        try {
+            for (StompFrame frame : session.decoder.decode(message)) {
+                onFrame(session, frame, false);
+            }
+        } catch (IllegalArgumentException e) {
+            error(session, "Malformed frame", e.getMessage());
+        }
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, ByteBuffer message) {
+        StompBrokerSession session = sessions.get(conn);
+        if (session == null) {
+            return;
+        }
+        session.lastReadNanos = System.nanoTime();
+        try {
+            for (StompFrame frame : session.decoder.decode(message)) {
+                onFrame(session, frame, true);
+            }
+        } catch (IllegalArgumentException e) {
+            error(session, "Malformed frame", e.getMessage());
+        }
+    }
+
+    @Override
+    public void onError(WebSocket conn, Exception ex) {
+        if (conn == null) {
+            if (started.getCount() > 0) {
+                // Not listening yet: the server is shutting down, let awaitStart report why
+                startFailure = ex;
+                started.countDown();
+            } else {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Handle a client frame.
+     *
+     * @param session client session
+     * @param frame   frame
+     * @param binary  whether the frame arrived in a binary WebSocket message
+     */
+    private void onFrame(StompBrokerSession session, StompFrame frame, boolean binary) {
+        StompCommand command = frame.getCommand();
+        if (!session.connected && command != StompCommand.CONNECT && command != StompCommand.STOMP) {
+            error(session, "Not connected", null);
+            return;
+        }
+        switch (command) {
+            case CONNECT:
+            case STOMP:
+                connect(session, frame);
+                return;
+            case SUBSCRIBE:
+                subscribe(session, frame);
+                break;
+            case UNSUBSCRIBE:
+                StompBrokerSubscription removed = session.subscriptions.remove(idOf(frame));
+                if (removed != null) {
+                    removeFromTopic(removed);
+                }
+                break;
+            case SEND:
+                if (!publish(frame, binary)) {
+                    error(session, "Missing destination header", null);
+                    return;
+                }
+                break;
+            case ACK:
+            case NACK:
+                if (session.unacknowledged.remove(idOf(frame)) != null && command == StompCommand.ACK) {
+                    messagesAcknowledged.incrementAndGet();
+                }
+                break;
+            case DISCONNECT:
+                receipt(session, frame);
+                session.connection.close(CloseFrame.NORMAL);
+                return;
+            default:
+                error(session, "Unsupported command " + command, null);
+                return;
+        }
+        receipt(session, frame);
+    }
+
+    private void connect(StompBrokerSession session, StompFrame frame) {
+        long[] client = parseHeartbeat(frame.getHeader(StompHeader.HEART_BEAT));
+        long outgoing = heartbeatOutgoing;
+        long incoming = heartbeatIncoming;
+        session.outgoingHeartbeatNanos = outgoing == 0 || client[1] == 0
+                ? 0 : TimeUnit.MILLISECONDS.toNanos(Math.max(outgoing, client[1]));
+        session.incomingHeartbeatNanos = incoming == 0 || client[0] == 0
+                ? 0 : TimeUnit.MILLISECONDS.toNanos(Math.max(incoming, client[0]));
+        session.connected = true;
+        session.send(ENCODER.get().begin(StompCommand.CONNECTED)
+                .header(StompHeader.VERSION, VERSION)
+                .header(StompHeader.HEART_BEAT, outgoing + "," + incoming)
+                .end(), false);
+    }
+
+    private void subscribe(StompBrokerSession session, StompFrame frame) {
+        String destination = frame.getHeader(StompHeader.DESTINATION);
+        String id = idOf(frame);
+        if (destination == null || id == null) {
+            error(session, "Missing destination or id header", null);
+            return;
+        }
+        String ack = frame.getHeader(StompHeader.ACK);
+        StompBrokerSubscription subscription = new StompBrokerSubscription(session, id, destination,
+                ack != null && !"auto".equals(ack));
+        StompBrokerSubscription previous = session.subscriptions.put(id, subscription);
+        if (previous != null) {
+            removeFromTopic(previous);
+        }
+        synchronized (topics) {
+            StompBrokerSubscription[] current = topics.get(destination);
+            int length = current != null ? current.length : 0;
+            StompBrokerSubscription[] updated = new StompBrokerSubscription[length + 1];
+            if (current != null) {
+                System.arraycopy(current, 0, updated, 0, length);
+            }
+            updated[length] = subscription;
+            topics.put(destination, updated);
+        }
+    }
+
+    private void removeFromTopic(StompBrokerSubscription subscription) {
+        synchronized (topics) {
+            StompBrokerSubscription[] current = topics.get(subscription.destination);
+            if (current == null) {
+                return;
+            }
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == subscription) {
+                    if (current.length == 1) {
+                        topics.remove(subscription.destination);
+                    } else {
+                        StompBrokerSubscription[] updated = new StompBrokerSubscription[current.length - 1];
+                        System.arraycopy(current, 0, updated, 0, i);
+                        System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                        topics.put(subscription.destination, updated);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Deliver a SEND frame to all subscriptions of its destination.
+     *
+     * @return {@code false} if the frame has no destination
+     */
+    private boolean publish(StompFrame frame, boolean binary) {
+        String destination = frame.getHeader(StompHeader.DESTINATION);
+        if (destination == null) {
+            return false;
+        }
+        messagesReceived.incrementAndGet();
+        StompBrokerSubscription[] subscriptions = topics.get(destination);
+        if (subscriptions == null) {
+            return true;
+        }
+
+        String messageId = Long.toString(nextMessageId.incrementAndGet());
+        byte[] body = frame.getBodyBytes();
+        StompFrameEncoder encoder = ENCODER.get();
+        for (StompBrokerSubscription subscription : subscriptions) {
+            encoder.begin(StompCommand.MESSAGE)
+                    .header(StompHeader.SUBSCRIPTION, subscription.id)
+                    .header(StompHeader.MESSAGE_ID, messageId)
+                    .header(StompHeader.DESTINATION, destination);
+            if (subscription.clientAck) {
+                String ackId = subscription.id + ":" + messageId;
+                subscription.session.unacknowledged.put(ackId, subscription);
+                encoder.header(StompHeader.ACK, ackId);
+            }
+            for (Map.Entry<String, String> header : frame.getHeaders().entrySet()) {
+                String name = header.getKey();
+                if (!StompHeader.DESTINATION.toString().equals(name) && !StompHeader.RECEIPT.toString().equals(name)
+                        && !StompHeader.CONTENT_LENGTH.toString().equals(name) && !"transaction".equals(name)) {
+                    encoder.header(name, header.getValue());
+                }
+            }
+            subscription.session.send(encoder.end(body), binary);
+            messagesDelivered.incrementAndGet();
+        }
+        return true;
+    }
+
+    private void receipt(StompBrokerSession session, StompFrame frame) {
+        String receipt = frame.getHeader(StompHeader.RECEIPT);
+        if (receipt != null) {
+            session.send(ENCODER.get().begin(StompCommand.RECEIPT)
+                    .header(StompHeader.RECEIPT_ID, receipt)
+                    .end(), false);
+        }
+    }
+
+    /**
+     * Send an ERROR frame and close the connection, as required by the specification.
+     */
+    private void error(StompBrokerSession session, String message, String details) {
+        StompFrameEncoder encoder = ENCODER.get().begin(StompCommand.ERROR)
+                .header(StompHeader.MESSAGE, message);
+        session.send(details != null ? encoder.end(details) : encoder.end(), false);
+        session.connection.close(CloseFrame.PROTOCOL_ERROR, message);
+    }
+
+    private void checkHeartbeats() {
+        long now = System.nanoTime();
+        for (StompBrokerSession session : sessions.values()) {
+            long incoming = session.incomingHeartbeatNanos;
+            if (incoming > 0 && now - session.lastReadNanos > incoming * HEARTBEAT_TOLERANCE) {
+                session.connection.closeConnection(CloseFrame.ABNORMAL_CLOSE, "STOMP heart-beat timeout");
+                continue;
+            }
+            long outgoing = session.outgoingHeartbeatNanos;
+            if (outgoing > 0 && now - session.lastWriteNanos >= outgoing
+                    - TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_TICK)) {
+                session.send(ByteBuffer.wrap(EOL), false);
+            }
+        }
+    }
+
+    private static String idOf(StompFrame frame) {
+        return frame.getHeader(StompHeader.ID);
+    }
+
+    private static long[] parseHeartbeat(String value) {
+        long[] intervals = new long[2];
+        if (value == null) {
+            return intervals;
+        }
+        int comma = value.indexOf(',');
+        if (comma < 0) {
+            return intervals;
+        }
+        try {
+            intervals[0] = Long.parseLong(value.substring(0, comma).trim());
+            intervals[1] = Long.parseLong(value.substring(comma + 1).trim());
+        } catch (NumberFormatException e) {
+            intervals[0] = 0;
+            intervals[1] = 0;
+        }
+        return intervals;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.broker;
+
+import eu.mivrenik.stomp.StompFrameDecoder;
+import org.java_websocket.WebSocket;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.TextFrame;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * State of a single client connection to the broker.
+ */
+final class StompBrokerSession {
+    final WebSocket connection;
+
+    /**
+     * Only used on the connection's read thread.
+     */
+    final StompFrameDecoder decoder = new StompFrameDecoder();
+
+    /**
+     * Subscriptions by id.
+     */
+    final Map<String, StompBrokerSubscription> subscriptions = new ConcurrentHashMap<>();
+
+    /**
+     * Delivered messages awaiting ACK or NACK, by ack id.
+     */
+    final Map<String, StompBrokerSubscription> unacknowledged = new ConcurrentHashMap<>();
+
+    volatile boolean connected;
+
+    /**
+     * Negotiated heart-beat intervals, 0 if disabled.
+     */
+    volatile long outgoingHeartbeatNanos;
+    volatile long incomingHeartbeatNanos;
+
+    volatile long lastReadNanos = System.nanoTime();
+    volatile long lastWriteNanos = System.nanoTime();
+
+    StompBrokerSession(WebSocket connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Write an encoded frame. The buffer may be reused once this returns.
+     *
+     * @param frame  encoded frame
+     * @param binary {@code true} to send a binary message, {@code false} for a text message
+     */
+    void send(ByteBuffer frame, boolean binary) {
+        try {
+            if (binary) {
+                connection.send(frame);
+            } else {
+                TextFrame textFrame = new TextFrame();
+                textFrame.setPayload(frame);
+                connection.sendFrame(textFrame);
+            }
+            lastWriteNanos = System.nanoTime();
+        } catch (WebsocketNotConnectedException e) {
+            // Closing, the session is removed in onClose
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.loadgen;
+
+import eu.mivrenik.stomp.StompFrame;
+import eu.mivrenik.stomp.broker.StompBroker;
+import eu.mivrenik.stomp.client.StompClient;
+import eu.mivrenik.stomp.client.StompHistogram;
+import eu.mivrenik.stomp.client.listener.StompMessageListener;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Command line load generator.
+ * <p>
+ * Drives a number of {@link StompClient}s at a target publish rate. Every client subscribes to its own destination
+ * and publishes to it, so each message makes a full round trip through the broker. Latency is measured from the time
+ * a message was scheduled to be sent rather than when it actually was, so that a stalled sender does not hide the
+ * delay (coordinated omission).
+ * <p>
+ * Usage: {@code StompLoadGenerator [--url ws://host:port/path] [--clients 4] [--rate 10000] [--duration 10]
+ * [--warmup 2] [--size 128] [--async-send]}. Without {@code --url} an embedded {@link StompBroker} is started.
+ * A rate of 0 publishes as fast as possible.
+ */
+public final class StompLoadGenerator {
+    private static final String DESTINATION_PREFIX = "/topic/load.";
+    private static final String SENT_HEADER = "x-sent-nanos";
+
+    private String url;
+    private int clientCount = 4;
+    private long rate = 10000;
+    private long durationSeconds = 10;
+    private long warmupSeconds = 2;
+    private int size = 128;
+    private boolean asyncSend;
+
+    private final StompHistogram latency = new StompHistogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private volatile long measureFromNanos = Long.MAX_VALUE;
+
+    private StompLoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        StompLoadGenerator generator = new StompLoadGenerator();
+        try {
+            generator.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: StompLoadGenerator [--url ws://host:port/path] [--clients n] [--rate msg/s]"
+                    + " [--duration s] [--warmup s] [--size bytes] [--async-send]");
+            System.exit(2);
+        }
+        generator.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--async-send".equals(arg)) {
+                asyncSend = true;
+                continue;
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            try {
+                switch (arg) {
+                    case "--url":
+                        url = value;
+                        break;
+                    case "--clients":
+                        clientCount = Integer.parseInt(value);
+                        break;
+                    case "--rate":
+                        rate = Long.parseLong(value);
+                        break;
+                    case "--duration":
+                        durationSeconds = Long.parseLong(value);
+                        break;
+                    case "--warmup":
+                        warmupSeconds = Long.parseLong(value);
+                        break;
+                    case "--size":
+                        size = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for " + arg + ": " + value);
+            }
+        }
+        if (clientCount <= 0 || rate < 0 || durationSeconds <= 0 || warmupSeconds < 0 || size < 0) {
+            throw new IllegalArgumentException("Invalid arguments");
+        }
+    }
+
+    private void run() throws Exception {
+        StompBroker broker = null;
+        if (url == null) {
+            broker = new StompBroker(new InetSocketAddress("127.0.0.1", 0));
+            broker.start();
+            if (!broker.awaitStart(10, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Embedded broker did not start");
+            }
+            url = "ws://127.0.0.1:" + broker.getPort();
+            System.out.println("Embedded broker listening on " + url);
+        }
+
+        List<StompClient> clients = connect();
+        try {
+            publish(clients);
+            report();
+        } finally {
+            for (StompClient client : clients) {
+                client.close();
+            }
+            if (broker != null) {
+                broker.stop();
+            }
+        }
+    }
+
+    private List<StompClient> connect() throws InterruptedException {
+        StompMessageListener listener = new StompMessageListener() {
+            @Override
+            public void onMessage(StompFrame stompFrame) {
+                long now = System.nanoTime();
+                received.incrementAndGet();
+                String sentAt = stompFrame.getHeader(SENT_HEADER);
+                if (sentAt != null) {
+                    long scheduled = Long.parseLong(sentAt);
+                    if (scheduled - measureFromNanos >= 0) {
+                        latency.record(now - scheduled);
+                    }
+                }
+            }
+        };
+
+        List<StompClient> clients = new ArrayList<>(clientCount);
+        for (int i = 0; i < clientCount; i++) {
+            StompClient client = new StompClient(URI.create(url));
+            if (asyncSend) {
+                client.enableAsyncSend(64 * 1024, 0, TimeUnit.MILLISECONDS);
+            }
+            if (!client.connectBlocking()) {
+                throw new IllegalStateException("Could not connect to " + url);
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!client.isStompConnected()) {
+                if (System.nanoTime() - deadline > 0) {
+                    throw new IllegalStateException("No CONNECTED frame from " + url);
+                }
+                Thread.sleep(1);
+            }
+            client.subscribe(DESTINATION_PREFIX + i, listener);
+            clients.add(client);
+        }
+        return clients;
+    }
+
+    private void publish(List<StompClient> clients) {
+        char[] chars = new char[size];
+        Arrays.fill(chars, 'x');
+        String payload = new String(chars);
+
+        long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+        long start = System.nanoTime();
+        measureFromNanos = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFromNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        long lastSent = 0;
+        long lastReceived = 0;
+
+        for (long n = 0; ; n++) {
+            long scheduled = intervalNanos > 0 ? start + n * intervalNanos : System.nanoTime();
+            long now = System.nanoTime();
+            if (scheduled - end >= 0 || now - end >= 0) {
+                break;
+            }
+            while (scheduled - now > 0) {
+                LockSupport.parkNanos(scheduled - now);
+                now = System.nanoTime();
+            }
+            if (now - nextReport >= 0) {
+                long currentSent = sent.get();
+                long currentReceived = received.get();
+                System.out.printf(Locale.ROOT, "%6.1fs  sent %9d/s  received %9d/s%n",
+                        (now - start) / 1e9, currentSent - lastSent, currentReceived - lastReceived);
+                lastSent = currentSent;
+                lastReceived = currentReceived;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+
+            int index = (int) (n % clients.size());
+            clients.get(index).send(DESTINATION_PREFIX + index, payload,
+                    Collections.singletonMap(SENT_HEADER, Long.toString(scheduled)));
+            sent.incrementAndGet();
+        }
+
+        // Let messages in flight arrive
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (received.get() < sent.get() && System.nanoTime() - deadline < 0) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+    }
+
+    private void report() {
+        long count = latency.getCount();
+        System.out.println();
+        System.out.printf(Locale.ROOT, "clients %d, target rate %s, payload %d bytes, %s send%n", clientCount,
+                rate > 0 ? rate + " msg/s" : "unlimited", size, asyncSend ? "async" : "sync");
+        System.out.printf(Locale.ROOT, "sent %d, received %d, missing %d%n",
+                sent.get(), received.get(), sent.get() - received.get());
+        System.out.printf(Locale.ROOT, "measured throughput %.0f msg/s over %d s%n",
+                (double) count / durationSeconds, durationSeconds);
+        System.out.printf(Locale.ROOT, "latency us: p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f%n",
+                latency.getPercentile(50) / 1e3, latency.getPercentile(90) / 1e3, latency.getPercentile(99) / 1e3,
+                latency.getPercentile(99.9) / 1e3, latency.getMax() / 1e3);
+    }
+}
@@ -0,0 +1,533 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import eu.mivrenik.stomp.StompFrame;
+import eu.mivrenik.stomp.client.listener.StompConnectionListener;
+import eu.mivrenik.stomp.client.listener.StompMessageListener;
+import eu.mivrenik.stomp.client.listener.StompTypedListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Client spreading destinations across several STOMP connections.
+ * <p>
+ * Every connection has its own read thread, so decoding scales with the number of connections. Each destination is
+ * mapped to a connection by consistent hashing, which keeps all traffic of a destination on one connection, in
+ * order, and moves only a fraction of the destinations when the number of connections changes. The connections may
+ * point at different nodes of a broker cluster.
+ * <p>
+ * The underlying clients can be configured individually through {@link #getShards()}, except for their connection
+ * listeners which are used to track the aggregate state.
+ */
+public class ShardedStompClient {
+    /**
+     * Points per connection on the hash ring, evens out the share of destinations per connection.
+     */
+    private static final int VIRTUAL_NODES = 160;
+
+    private final List<StompClient> shards;
+
+    /**
+     * Hash ring: sorted point hashes and the shard owning each point.
+     */
+    private final int[] ringHashes;
+    private final int[] ringShards;
+
+    /**
+     * Per-shard STOMP connection status, 1 if connected.
+     */
+    private final AtomicIntegerArray shardConnected;
+    private final AtomicInteger connectedCount = new AtomicInteger();
+    private volatile StompConnectionListener stompConnectionListener;
+
+    /**
+     * Open several connections to the same server.
+     *
+     * @param serverUri   server URI
+     * @param connections number of connections
+     */
+    public ShardedStompClient(URI serverUri, int connections) {
+        this(createClients(serverUri, connections));
+    }
+
+    /**
+     * Shard over the given clients, which must not be connected yet.
+     *
+     * @param clients clients, e.g. one per broker node
+     */
+    public ShardedStompClient(List<? extends StompClient> clients) {
+        if (clients.isEmpty()) {
+            throw new IllegalArgumentException("At least one client is required");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<StompClient>(clients));
+        this.shardConnected = new AtomicIntegerArray(shards.size());
+
+        long[] ring = new long[shards.size() * VIRTUAL_NODES];
+        for (int shard = 0; shard < shards.size(); shard++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                int hash = mix(shard * VIRTUAL_NODES + node + 1);
+                ring[shard * VIRTUAL_NODES + node] = ((long) hash << 32) | shard;
+            }
+        }
+        Arrays.sort(ring);
+        ringHashes = new int[ring.length];
+        ringShards = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            ringHashes[i] = (int) (ring[i] >> 32);
+            ringShards[i] = (int) ring[i];
+        }
+
+        for (int shard = 0; shard < shards.size(); shard++) {
+            shards.get(shard).setStompConnectionListener(new ShardListener(shard));
+        }
+    }
+
+    private static List<StompClient> createClients(URI serverUri, int connections) {
+        if (connections <= 0) {
+            throw new IllegalArgumentException("Invalid number of connections: " + connections);
+        }
+        List<StompClient> clients = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            clients.add(new StompClient(serverUri));
+        }
+        return clients;
+    }
+
+    /**
+     * Get the client a destination is routed to.
+     *
+     * @param destination destination
+     * @return client
+     */
+    public StompClient getShard(String destination) {
+        int hash = hash(destination);
+        int index = Arrays.binarySearch(ringHashes, hash);
+        if (index < 0) {
+            index = -index - 1;
+            if (index == ringHashes.length) {
+                index = 0;
+            }
+        }
+        return shards.get(ringShards[index]);
+    }
+
+    /**
+     * Get the underlying clients.
+     *
+     * @return unmodifiable list of clients
+     */
+    public List<StompClient> getShards() {
+        return shards;
+    }
+
+    /**
+     * Open all connections.
+     */
+    public void connect() {
+        for (StompClient shard : shards) {
+            shard.connect();
+        }
+    }
+
+    /**
+     * Close all connections.
+     */
+    public void close() {
+        for (StompClient shard : shards) {
+            shard.close();
+        }
+    }
+
+    /**
+     * Send text message to the server.
+     *
+     * @param destination destination
+     * @param message     text message
+     */
+    public void send(String destination, String message) {
+        getShard(destination).send(destination, message);
+    }
+
+    /**
+     * Send text message to the server.
+     *
+     * @param destination destination
+     * @param message     text message
+     * @param headers     (optional) additional headers
+     */
+    public void send(String destination, String message, Map<String, String> headers) {
+        getShard(destination).send(destination, message, headers);
+    }
+
+    /**
+     * Send binary message to the server.
+     *
+     * @param destination destination
+     * @param body        message body
+     */
+    public void send(String destination, byte[] body) {
+        getShard(destination).send(destination, body);
+    }
+
+    /**
+     * Send binary message to the server.
+     *
+     * @param destination destination
+     * @param body        message body
+     * @param headers     (optional) additional headers
+     */
+    public void send(String destination, byte[] body, Map<String, String> headers) {
+        getShard(destination).send(destination, body, headers);
+    }
+
+    /**
+     * Stream the rest of a file as a binary message body.
+     *
+     * @param destination destination
+     * @param body        file to send
+     * @param headers     (optional) additional headers
+     * @throws IOException if the file cannot be read
+     * @see StompClient#send(String, FileChannel, Map)
+     */
+    public void send(String destination, FileChannel body, Map<String, String> headers) throws IOException {
+        getShard(destination).send(destination, body, headers);
+    }
+
+    /**
+     * Convert an object and send it as a binary body.
+     *
+     * @param destination destination
+     * @param payload     message object
+     * @param headers     (optional) additional headers
+     * @see StompClient#send(String, Object, Map)
+     */
+    public void send(String destination, Object payload, Map<String, String> headers) {
+        getShard(destination).send(destination, payload, headers);
+    }
+
+    /**
+     * Send text message to the server without waiting for the write.
+     *
+     * @param destination destination
+     * @param message     text message
+     * @param headers     (optional) additional headers
+     * @return future completed once the frame has been handed to the WebSocket
+     * @see StompClient#sendAsync(String, String, Map)
+     */
+    public StompFuture<Void> sendAsync(String destination, String message, Map<String, String> headers) {
+        return getShard(destination).sendAsync(destination, message, headers);
+    }
+
+    /**
+     * Send binary message to the server without waiting for the write.
+     *
+     * @param destination destination
+     * @param body        message body
+     * @param headers     (optional) additional headers
+     * @return future completed once the frame has been handed to the WebSocket
+     * @see StompClient#sendAsync(String, byte[], Map)
+     */
+    public StompFuture<Void> sendAsync(String destination, byte[] body, Map<String, String> headers) {
+        return getShard(destination).sendAsync(destination, body, headers);
+    }
+
+    /**
+     * Send text message to the server and request a receipt.
+     *
+     * @param destination destination
+     * @param message     text message
+     * @param headers     (optional) additional headers
+     * @return future completed with the RECEIPT frame
+     * @see StompClient#sendWithReceipt(String, String, Map)
+     */
+    public StompFuture<StompFrame> sendWithReceipt(String destination, String message, Map<String, String> headers) {
+        return getShard(destination).sendWithReceipt(destination, message, headers);
+    }
+
+    /**
+     * Send binary message to the server and request a receipt.
+     *
+     * @param destination destination
+     * @param body        message body
+     * @param headers     (optional) additional headers
+     * @return future completed with the RECEIPT frame
+     * @see StompClient#sendWithReceipt(String, byte[], Map)
+     */
+    public StompFuture<StompFrame> sendWithReceipt(String destination, byte[] body, Map<String, String> headers) {
+        return getShard(destination).sendWithReceipt(destination, body, headers);
+    }
+
+    /**
+     * Subscribe to a specific topic.
+     *
+     * @param destination topic destination
+     * @param listener    listener
+     * @return STOMP subscription data that can be used to unsubscribe
+     */
+    public StompSubscription subscribe(String destination, StompMessageListener listener) {
+        return getShard(destination).subscribe(destination, listener);
+    }
+
+    /**
+     * Subscribe to a specific topic with the given acknowledgement mode.
+     *
+     * @param destination topic destination
+     * @param listener    listener
+     * @param ackMode     acknowledgement mode
+     * @return STOMP subscription data that can be used to unsubscribe
+     * @see StompClient#subscribe(String, StompMessageListener, StompAckMode)
+     */
+    public StompSubscription subscribe(String destination, StompMessageListener listener, StompAckMode ackMode) {
+        return getShard(destination).subscribe(destination, listener, ackMode);
+    }
+
+    /**
+     * Subscribe to a specific topic, converting message bodies straight from their bytes.
+     *
+     * @param destination topic destination
+     * @param type        message type
+     * @param listener    listener
+     * @param <T>         message type
+     * @return STOMP subscription data that can be used to unsubscribe
+     * @see StompClient#subscribe(String, Class, StompTypedListener)
+     */
+    public <T> StompSubscription subscribe(String destination, Class<T> type, StompTypedListener<? super T> listener) {
+        return getShard(destination).subscribe(destination, type, listener);
+    }
+
+    /**
+     * Subscribe to a specific topic and request a receipt confirming the subscription.
+     *
+     * @param destination topic destination
+     * @param listener    listener
+     * @return future completed with the subscription once the server has confirmed it
+     */
+    public StompFuture<StompSubscription> subscribeWithReceipt(String destination, StompMessageListener listener) {
+        return getShard(destination).subscribeWithReceipt(destination, listener);
+    }
+
+    /**
+     * Remove a single subscription.
+     *
+     * @param subscription subscription
+     */
+    public void removeSubscription(StompSubscription subscription) {
+        getShard(subscription.getDestination()).removeSubscription(subscription);
+    }
+
+    /**
+     * Unsubscribe all from a single topic.
+     *
+     * @param destination topic
+     */
+    public void removeAllSubscriptions(String destination) {
+        getShard(destination).removeAllSubscriptions(destination);
+    }
+
+    /**
+     * Check if every connection is STOMP connected.
+     *
+     * @return aggregate STOMP connection status
+     */
+    public boolean isStompConnected() {
+        return connectedCount.get() == shards.size();
+    }
+
+    /**
+     * Get the number of STOMP connected connections.
+     *
+     * @return connected count
+     */
+    public int getConnectedCount() {
+        return connectedCount.get();
+    }
+
+    /**
+     * Register aggregate STOMP connection listener.
+     * <p>
+     * {@link StompConnectionListener#onConnecting()} is called when a connection starts connecting while none is
+     * up, {@link StompConnectionListener#onConnected()} once all connections are up and
+     * {@link StompConnectionListener#onDisconnected()} when the first of them goes down. Heart-beat timeouts of any
+     * connection are passed on.
+     *
+     * @param stompConnectionListener listener
+     */
+    public void setStompConnectionListener(StompConnectionListener stompConnectionListener) {
+        this.stompConnectionListener = stompConnectionListener;
+    }
+
+    /**
+     * Install instrumentation on every connection. A {@link StompMetricsCollector} aggregates them.
+     *
+     * @param metrics metrics or {@code null} to disable instrumentation
+     */
+    public void setMetrics(StompMetrics metrics) {
+        for (StompClient shard : shards) {
+            shard.setMetrics(metrics);
+        }
+    }
+
+    /**
+     * Set the maximum size of inbound frames on every connection.
+     *
+     * @param maxFrameSize maximum frame size in bytes
+     * @see StompClient#setMaxFrameSize(int)
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        for (StompClient shard : shards) {
+            shard.setMaxFrameSize(maxFrameSize);
+        }
+    }
+
+    /**
+     * Spill large inbound message bodies to memory-mapped files on every connection.
+     *
+     * @param threshold smallest body to spill in bytes
+     * @param directory (optional) directory of the temporary files
+     * @see StompClient#setSpillThreshold(int, File)
+     */
+    public void setSpillThreshold(int threshold, File directory) {
+        for (StompClient shard : shards) {
+            shard.setSpillThreshold(threshold, directory);
+        }
+    }
+
+    /**
+     * Journal SEND frames of every connection, each in its own {@code shard-<index>} subdirectory.
+     *
+     * @param directory   parent directory of the journals
+     * @param segmentSize size of each segment file in bytes
+     * @throws IOException if a journal cannot be opened
+     * @see StompClient#enableSpool(File, int)
+     */
+    public void enableSpool(File directory, int segmentSize) throws IOException {
+        for (int i = 0; i < shards.size(); i++) {
+            shards.get(i).enableSpool(new File(directory, "shard-" + i), segmentSize);
+        }
+    }
+
+    /**
+     * Stop journaling SEND frames on every connection.
+     */
+    public void disableSpool() {
+        for (StompClient shard : shards) {
+            shard.disableSpool();
+        }
+    }
+
+    /**
+     * Register a message converter on every connection.
+     *
+     * @param converter converter
+     * @see StompClient#addMessageConverter(StompMessageConverter)
+     */
+    public void addMessageConverter(StompMessageConverter converter) {
+        for (StompClient shard : shards) {
+            shard.addMessageConverter(converter);
+        }
+    }
+
+    /**
+     * FNV-1a over the destination's chars, finished with {@link #mix(int)} for a uniform spread on the ring.
+     */
+    private static int hash(String destination) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < destination.length(); i++) {
+            hash ^= destination.charAt(i);
+            hash *= 0x01000193;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * MurmurHash3 32-bit finalizer.
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    /**
+     * Tracks the connection status of a single shard.
+     */
+    private final class ShardListener extends StompConnectionListener {
+        private final int shard;
+
+        ShardListener(int shard) {
+            this.shard = shard;
+        }
+
+        @Override
+        public void onConnecting() {
+            StompConnectionListener listener = stompConnectionListener;
+            if (listener != null && connectedCount.get() == 0) {
+                listener.onConnecting();
+            }
+        }
+
+        @Override
+        public void onConnected() {
+            if (shardConnected.compareAndSet(shard, 0, 1)
+                    && connectedCount.incrementAndGet() == shards.size()) {
+                StompConnectionListener listener = stompConnectionListener;
+                if (listener != null) {
+                    listener.onConnected();
+                }
+            }
+        }
+
+        @Override
+        public void onDisconnected() {
+            // Called for both the DISCONNECT frame and the socket closing, count it once
+            if (shardConnected.compareAndSet(shard, 1, 0)
+                    && connectedCount.getAndDecrement() == shards.size()) {
+                StompConnectionListener listener = stompConnectionListener;
+                if (listener != null) {
+                    listener.onDisconnected();
+                }
+            }
+        }
+
+        @Override
+        public void onHeartbeatTimeout() {
+            StompConnectionListener listener = stompConnectionListener;
+            if (listener != null) {
+                listener.onHeartbeatTimeout();
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import eu.mivrenik.stomp.StompCommand;
+import eu.mivrenik.stomp.StompFrameEncoder;
+import eu.mivrenik.stomp.StompHeader;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects ACK and NACK frames and writes them in batches.
+ * <p>
+ * Pending frames are flushed as a single WebSocket message once the batch is full or the flush interval has passed
+ * since the first of them. In {@link StompAckMode#CLIENT} mode an ACK covers all previous messages of the
+ * subscription, so consecutive ACKs of a subscription are coalesced into the latest one.
+ */
+class StompAckBatcher implements Runnable {
+    private final StompClient client;
+    private volatile int maxBatch;
+    private volatile long flushIntervalNanos;
+
+    /**
+     * Pending acknowledgements in arrival order, guarded by {@code this}.
+     */
+    private List<PendingAck> pending = new ArrayList<>();
+    private boolean scheduled;
+
+    /**
+     * Serialises flushes so that batches are written in order. Guards the encoder and the message buffer.
+     */
+    private final Object flushLock = new Object();
+    private final StompFrameEncoder encoder = new StompFrameEncoder();
+    private ByteBuffer message = ByteBuffer.allocate(1024);
+
+    StompAckBatcher(StompClient client, int maxBatch, long flushInterval, TimeUnit unit) {
+        this.client = client;
+        configure(maxBatch, flushInterval, unit);
+    }
+
+    /**
+     * Change the batch size and flush interval. Takes effect with the next acknowledgement.
+     */
+    void configure(int maxBatch, long flushInterval, TimeUnit unit) {
+        this.maxBatch = maxBatch;
+        this.flushIntervalNanos = unit.toNanos(flushInterval);
+    }
+
+    /**
+     * Queue an ACK or NACK for a message.
+     *
+     * @param subscription subscription the message was delivered to
+     * @param ackId        value of the message's ack header, or its message-id for STOMP 1.1 servers
+     * @param legacy       whether {@code ackId} is a message-id
+     * @param ack          {@code true} for ACK, {@code false} for NACK
+     */
+    void add(StompSubscription subscription, String ackId, boolean legacy, boolean ack) {
+        boolean flushNow;
+        synchronized (this) {
+            boolean cumulative = ack && subscription.getAckMode() == StompAckMode.CLIENT;
+            if (cumulative && subscription.pendingAckIndex >= 0) {
+                PendingAck latest = pending.get(subscription.pendingAckIndex);
+                latest.ackId = ackId;
+                latest.legacy = legacy;
+                return;
+            }
+            // A NACK ends the run of coalescable ACKs, later ACKs must follow it
+            subscription.pendingAckIndex = cumulative ? pending.size() : -1;
+            pending.add(new PendingAck(subscription, ackId, legacy, ack));
+
+            flushNow = pending.size() >= maxBatch || flushIntervalNanos <= 0;
+            if (!flushNow && !scheduled) {
+                scheduled = true;
+                try {
+                    StompScheduler.get().schedule(this, flushIntervalNanos, TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException e) {
+                    scheduled = false;
+                    flushNow = true;
+                }
+            }
+        }
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    @Override
+    public void run() {
+        synchronized (this) {
+            scheduled = false;
+        }
+        flush();
+    }
+
+    /**
+     * Write all pending acknowledgements now.
+     */
+    void flush() {
+        synchronized (flushLock) {
+            List<PendingAck> batch = drain();
+            if (batch.isEmpty()) {
+                return;
+            }
+            message.clear();
+            for (PendingAck pendingAck : batch) {
+                append(pendingAck);
+            }
+            message.flip();
+            try {
+                client.submitFrame(message, false);
+            } catch (RuntimeException e) {
+                client.onError(e);
+            }
+        }
+    }
+
+    /**
+     * Drop pending acknowledgements, e.g. after the connection was lost and they are no longer valid.
+     */
+    void clear() {
+        drain();
+    }
+
+    private synchronized List<PendingAck> drain() {
+        List<PendingAck> batch = pending;
+        if (batch.isEmpty()) {
+            return batch;
+        }
+        pending = new ArrayList<>();
+        for (PendingAck pendingAck : batch) {
+            pendingAck.subscription.pendingAckIndex = -1;
+        }
+        return batch;
+    }
+
+    private void append(PendingAck pendingAck) {
+        encoder.begin(pendingAck.ack ? StompCommand.ACK : StompCommand.NACK);
+        if (pendingAck.legacy) {
+            encoder.header(StompHeader.SUBSCRIPTION, pendingAck.subscription.getId())
+                    .header(StompHeader.MESSAGE_ID, pendingAck.ackId);
+        } else {
+            encoder.header(StompHeader.ID, pendingAck.ackId);
+        }
+        ByteBuffer frame = encoder.end();
+        if (message.remaining() < frame.remaining()) {
+            int capacity = Math.max(message.capacity() * 2, message.position() + frame.remaining());
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            message.flip();
+            grown.put(message);
+            message = grown;
+        }
+        message.put(frame);
+    }
+
+    private static final class PendingAck {
+        final StompSubscription subscription;
+        final boolean ack;
+        String ackId;
+        boolean legacy;
+
+        PendingAck(StompSubscription subscription, String ackId, boolean legacy, boolean ack) {
+            this.subscription = subscription;
+            this.ackId = ackId;
+            this.legacy = legacy;
+            this.ack = ack;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Capture of the raw WebSocket messages of a client session, see {@link StompClient#setCapture(StompCapture)}.
+ * <p>
+ * Recording copies the message into a lock-free queue and never blocks. A single writer task at a time drains the
+ * queue on the shared scheduler through a buffer into the file. Messages arriving while more than the maximum number
+ * of bytes is pending are dropped and counted.
+ * <p>
+ * File layout: the magic {@code STOMPCAP}, a version byte and the capture start in milliseconds since the epoch,
+ * followed by records. Each record holds a flags byte, the nanoseconds since the previous record as a zig-zag
+ * varint, the payload length as a varint and the payload. Read captures with {@link StompCaptureReader}.
+ */
+public final class StompCapture implements Closeable {
+    static final byte[] MAGIC = {'S', 'T', 'O', 'M', 'P', 'C', 'A', 'P'};
+    static final int VERSION = 1;
+
+    /**
+     * Record flags: written by the client, sent as a binary message, followed by further fragments of the message.
+     */
+    static final int OUTBOUND = 1;
+    static final int BINARY = 2;
+    static final int FRAGMENT = 4;
+
+    /**
+     * Largest record header: flags, 10-byte varlong and 5-byte varint.
+     */
+    private static final int MAX_RECORD_HEADER = 1 + 10 + 5;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Delay before the writer runs, letting records accumulate into larger writes.
+     */
+    private static final long WRITE_DELAY_MILLIS = 1;
+
+    private final FileOutputStream output;
+    private final FileChannel channel;
+    private final long maxPendingBytes;
+
+    private final Queue<Record> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * Write buffer and timestamp of the last written record, guarded by {@code this}.
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+    private long lastNanos;
+
+    /**
+     * Create a capture file, replacing an existing one.
+     *
+     * @param file            capture file
+     * @param maxPendingBytes maximum size of messages waiting to be written
+     * @throws IOException if the file cannot be created
+     */
+    public StompCapture(File file, int maxPendingBytes) throws IOException {
+        if (maxPendingBytes <= 0) {
+            throw new IllegalArgumentException("Invalid maximum pending capture size: " + maxPendingBytes);
+        }
+        this.maxPendingBytes = maxPendingBytes;
+        this.output = new FileOutputStream(file);
+        this.channel = output.getChannel();
+        this.lastNanos = System.nanoTime();
+        buffer.put(MAGIC).put((byte) VERSION).putLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Record a text message.
+     *
+     * @param flags   record flags
+     * @param message text message
+     */
+    void record(int flags, String message) {
+        if (!closed) {
+            offer(new Record(flags, System.nanoTime(), message.getBytes(UTF_8)));
+        }
+    }
+
+    /**
+     * Record a message. The buffer's position is left unchanged.
+     *
+     * @param flags   record flags
+     * @param message message bytes
+     */
+    void record(int flags, ByteBuffer message) {
+        if (!closed) {
+            long nanos = System.nanoTime();
+            byte[] data = new byte[message.remaining()];
+            message.duplicate().get(data);
+            offer(new Record(flags, nanos, data));
+        }
+    }
+
+    private void offer(Record record) {
+        if (pendingBytes.addAndGet(record.data.length) > maxPendingBytes) {
+            pendingBytes.addAndGet(-record.data.length);
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.offer(record);
+        recorded.incrementAndGet();
+        if (scheduled.compareAndSet(false, true)) {
+            StompScheduler.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    scheduled.set(false);
+                    try {
+                        drain();
+                    } catch (IOException e) {
+                        fail();
+                    }
+                }
+            }, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write all queued records.
+     */
+    private synchronized void drain() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        Record record;
+        while ((record = queue.poll()) != null) {
+            pendingBytes.addAndGet(-record.data.length);
+            if (buffer.remaining() < MAX_RECORD_HEADER) {
+                flush();
+            }
+            buffer.put((byte) record.flags);
+            long delta = record.nanos - lastNanos;
+            lastNanos = record.nanos;
+            putVarLong((delta << 1) ^ (delta >> 63));
+            putVarLong(record.data.length);
+            int offset = 0;
+            while (offset < record.data.length) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int length = Math.min(buffer.remaining(), record.data.length - offset);
+                buffer.put(record.data, offset, length);
+                offset += length;
+            }
+        }
+        flush();
+    }
+
+    private void putVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Stop capturing after a write error.
+     */
+    private void fail() {
+        closed = true;
+        queue.clear();
+        try {
+            output.close();
+        } catch (IOException ignored) {
+            // Already failing
+        }
+    }
+
+    /**
+     * Number of messages recorded so far.
+     *
+     * @return recorded message count
+     */
+    public long getRecorded() {
+        return recorded.get();
+    }
+
+    /**
+     * Number of messages dropped because too many bytes were waiting to be written.
+     *
+     * @return dropped message count
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Stop capturing, write the remaining messages and close the file.
+     *
+     * @throws IOException if the messages cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        synchronized (this) {
+            try {
+                drain();
+            } finally {
+                output.close();
+            }
+        }
+    }
+
+    private static final class Record {
+        private final int flags;
+        private final long nanos;
+        private final byte[] data;
+
+        private Record(int flags, long nanos, byte[] data) {
+            this.flags = flags;
+            this.nanos = nanos;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Sequential reader of a {@link StompCapture} file.
+ * <p>
+ * The payload buffer is reused, so a record's payload is only valid until {@link #next()} is called again. A record
+ * cut short at the end of the file, e.g. by a crash, ends the capture.
+ */
+public final class StompCaptureReader implements Closeable {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final DataInputStream input;
+    private final long startMillis;
+
+    private int flags;
+    private long timestampNanos;
+    private byte[] payload = new byte[4096];
+    private int length;
+
+    /**
+     * Open a capture file.
+     *
+     * @param file capture file
+     * @throws IOException if the file cannot be read or is not a capture
+     */
+    public StompCaptureReader(File file) throws IOException {
+        input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            byte[] magic = new byte[StompCapture.MAGIC.length];
+            input.readFully(magic);
+            if (!Arrays.equals(magic, StompCapture.MAGIC)) {
+                throw new IOException("Not a STOMP capture: " + file);
+            }
+            int version = input.readUnsignedByte();
+            if (version != StompCapture.VERSION) {
+                throw new IOException("Unsupported STOMP capture version: " + version);
+            }
+            startMillis = input.readLong();
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read the next record.
+     *
+     * @return {@code false} at the end of the capture
+     * @throws IOException if the file cannot be read
+     */
+    public boolean next() throws IOException {
+        int nextFlags = input.read();
+        if (nextFlags < 0) {
+            return false;
+        }
+        try {
+            long delta = readVarLong();
+            long nextLength = readVarLong();
+            if (nextLength < 0 || nextLength > Integer.MAX_VALUE) {
+                throw new IOException("Corrupt STOMP capture record length: " + nextLength);
+            }
+            if (payload.length < nextLength) {
+                payload = new byte[Math.max((int) nextLength, payload.length * 2)];
+            }
+            input.readFully(payload, 0, (int) nextLength);
+            flags = nextFlags;
+            timestampNanos += (delta >>> 1) ^ -(delta & 1);
+            length = (int) nextLength;
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = input.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt STOMP capture varint");
+    }
+
+    /**
+     * Capture start.
+     *
+     * @return milliseconds since the epoch
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * Time of the current record.
+     *
+     * @return nanoseconds since the capture started
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    /**
+     * Whether the current record was written by the client rather than received.
+     *
+     * @return {@code true} for outbound messages
+     */
+    public boolean isOutbound() {
+        return (flags & StompCapture.OUTBOUND) != 0;
+    }
+
+    /**
+     * Whether the current record is a binary WebSocket message.
+     *
+     * @return {@code true} for binary messages, {@code false} for text messages
+     */
+    public boolean isBinary() {
+        return (flags & StompCapture.BINARY) != 0;
+    }
+
+    /**
+     * Whether the current record is a fragment followed by more fragments of the same message, as written by
+     * {@link StompClient#send(String, java.nio.channels.FileChannel, java.util.Map)}.
+     *
+     * @return {@code true} unless the record is a complete message or its last fragment
+     */
+    public boolean isFragment() {
+        return (flags & StompCapture.FRAGMENT) != 0;
+    }
+
+    /**
+     * Payload of the current record, valid until the next record is read.
+     *
+     * @return buffer ready to be read
+     */
+    public ByteBuffer getPayload() {
+        return ByteBuffer.wrap(payload, 0, length);
+    }
+
+    /**
+     * Payload of the current record as text.
+     *
+     * @return payload decoded as UTF-8
+     */
+    public String getText() {
+        return new String(payload, 0, length, UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import eu.mivrenik.stomp.StompFrame;
+import eu.mivrenik.stomp.StompFrameDecoder;
+import eu.mivrenik.stomp.client.listener.StompMessageListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays the inbound messages of a {@link StompCapture} offline, to benchmark decoding and dispatch against real
+ * traffic.
+ * <p>
+ * Messages are replayed at the captured pace scaled by the speed, or as fast as possible with a speed of 0. Outbound
+ * records are skipped.
+ */
+public class StompCaptureReplayer {
+    private static final byte[] CONNECTED = {'C', 'O', 'N', 'N', 'E', 'C', 'T', 'E', 'D'};
+
+    private final File file;
+    private volatile double speed = 1;
+
+    /**
+     * @param file capture file
+     */
+    public StompCaptureReplayer(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Set the replay speed relative to the capture.
+     *
+     * @param speed 1 for the original pace (default), 2 for twice as fast, 0 for as fast as possible
+     */
+    public void setSpeed(double speed) {
+        if (speed < 0 || Double.isNaN(speed)) {
+            throw new IllegalArgumentException("Invalid replay speed: " + speed);
+        }
+        this.speed = speed;
+    }
+
+    /**
+     * Replay inbound messages into a client, through its decoder, subscriptions and listeners.
+     * <p>
+     * The client must not be connected. MESSAGE frames refer to subscriptions by the ids of the captured session, so
+     * subscribe in the same order as the captured session did; with reconnecting enabled, subscriptions made while
+     * offline are registered without being sent. CONNECTED frames are skipped, so the client does not start
+     * heart-beating or replaying held frames.
+     *
+     * @param client client to feed
+     * @return number of messages replayed
+     * @throws IOException if the capture cannot be read
+     */
+    public long replay(StompClient client) throws IOException {
+        long messages = 0;
+        try (StompCaptureReader reader = new StompCaptureReader(file)) {
+            Pacer pacer = new Pacer(speed);
+            while (reader.next()) {
+                if (reader.isOutbound() || isConnected(reader.getPayload())) {
+                    continue;
+                }
+                pacer.await(reader.getTimestampNanos());
+                if (reader.isBinary()) {
+                    client.onMessage(reader.getPayload());
+                } else {
+                    client.onMessage(reader.getText());
+                }
+                messages++;
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Replay inbound messages into a decoder and pass every decoded frame to a listener.
+     *
+     * @param decoder  decoder, e.g. configured like the captured client's
+     * @param listener listener receiving frames of all commands
+     * @return number of frames decoded
+     * @throws IOException if the capture cannot be read
+     */
+    public long replay(StompFrameDecoder decoder, StompMessageListener listener) throws IOException {
+        long frames = 0;
+        try (StompCaptureReader reader = new StompCaptureReader(file)) {
+            Pacer pacer = new Pacer(speed);
+            while (reader.next()) {
+                if (reader.isOutbound()) {
+                    continue;
+                }
+                pacer.await(reader.getTimestampNanos());
+                for (StompFrame frame : decoder.decode(reader.getPayload())) {
+                    listener.onMessage(frame);
+                    frames++;
+                }
+            }
+        }
+        return frames;
+    }
+
+    private static boolean isConnected(ByteBuffer message) {
+        if (message.remaining() <= CONNECTED.length) {
+            return false;
+        }
+        int position = message.position();
+        for (int i = 0; i < CONNECTED.length; i++) {
+            if (message.get(position + i) != CONNECTED[i]) {
+                return false;
+            }
+        }
+        byte next = message.get(position + CONNECTED.length);
+        return next == '\n' || next == '\r';
+    }
+
+    /**
+     * Waits until a record is due relative to the first replayed record.
+     */
+    private static final class Pacer {
+        private final double speed;
+        private boolean started;
+        private long firstTimestamp;
+        private long startNanos;
+
+        private Pacer(double speed) {
+            this.speed = speed;
+        }
+
+        void await(long timestamp) {
+            if (speed == 0) {
+                return;
+            }
+            if (!started) {
+                started = true;
+                firstTimestamp = timestamp;
+                startNanos = System.nanoTime();
+                return;
+            }
+            long due = startNanos + (long) ((timestamp - firstTimestamp) / speed);
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+}
@@ -23,19 +23,37 @@ package eu.mivrenik.stomp.client;
 
 import eu.mivrenik.stomp.StompCommand;
 import eu.mivrenik.stomp.StompFrame;
+import eu.mivrenik.stomp.StompFrameDecoder;
+import eu.mivrenik.stomp.StompFrameEncoder;
+import eu.mivrenik.stomp.StompFrameTooLargeException;
 import eu.mivrenik.stomp.StompHeader;
 import eu.mivrenik.stomp.client.listener.StompConnectionListener;
 import eu.mivrenik.stomp.client.listener.StompMessageListener;
+import eu.mivrenik.stomp.client.listener.StompQueueListener;
+import eu.mivrenik.stomp.client.listener.StompTypedListener;
 import org.java_websocket.WebSocketListener;
 import org.java_websocket.client.WebSocketClient;
 import org.java_websocket.drafts.Draft;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.TextFrame;
 import org.java_websocket.handshake.ServerHandshake;
 
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 /**
  * STOMP v1.2 client using `Java-WebSocket` WebSocket client implementation.
@@ -49,10 +67,58 @@ public class StompClient extends WebSocketClient {
      */
     private static final String STOMP_VERSION = "1.2";
 
+    /**
+     * Default bound of outstanding receipts.
+     */
+    private static final int DEFAULT_MAX_RECEIPTS_IN_FLIGHT = 1024;
+
+    /**
+     * Default time to wait for a receipt, in seconds.
+     */
+    private static final long DEFAULT_RECEIPT_TIMEOUT = 30;
+
+    /**
+     * Default number of ACK/NACK frames written per batch.
+     */
+    private static final int DEFAULT_ACK_BATCH = 64;
+
+    /**
+     * Default time an ACK/NACK waits for others to batch with, in milliseconds.
+     */
+    private static final long DEFAULT_ACK_FLUSH_INTERVAL = 5;
+
+    /**
+     * Heart-beat sent on an idle connection.
+     */
+    private static final byte[] EOL = {'\n'};
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * WebSocket fragment size of streamed frames.
+     */
+    private static final int STREAM_FRAGMENT_SIZE = 64 * 1024;
+
+    /**
+     * Result of frames written synchronously.
+     */
+    private static final StompFuture<Void> SENT = StompFuture.completed(null);
+
+    /**
+     * Per-thread frame encoders. Java-WebSocket copies the frame while sending, so the buffer can be reused as soon
+     * as the send call returns.
+     */
+    private static final ThreadLocal<StompFrameEncoder> ENCODER = new ThreadLocal<StompFrameEncoder>() {
+        @Override
+        protected StompFrameEncoder initialValue() {
+            return new StompFrameEncoder();
+        }
+    };
+
     /**
      * STOMP topic subscription listeners.
      */
-    private Map<Integer, StompSubscription> subscriptions = new HashMap<>();
+    private final StompSubscriptionRegistry subscriptions = new StompSubscriptionRegistry();
 
     /**
      * STOMP connection status.
@@ -64,6 +130,140 @@ public class StompClient extends WebSocketClient {
      */
     private StompConnectionListener stompConnectionListener;
 
+    /**
+     * Inbound STOMP stream decoder. Only used on the WebSocket read thread.
+     */
+    private final StompFrameDecoder decoder = new StompFrameDecoder();
+
+    /**
+     * Inbound frame limits, applied to the decoder when a connection opens.
+     */
+    private volatile int maxFrameSize = Integer.MAX_VALUE;
+    private volatile int spillThreshold = Integer.MAX_VALUE;
+    private volatile File spillDirectory;
+
+    /**
+     * Guards writes to the WebSocket. Held only while a message or fragment is handed over, never during I/O.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * Whether a streamed frame is between fragments, and the frames written meanwhile. Guarded by
+     * {@link #writeLock}. WebSocket messages cannot interleave with fragments, so these frames are written after
+     * the last fragment instead of making the writer wait, which may be a timer or scheduler thread.
+     */
+    private boolean streaming;
+    private final List<DeferredFrame> deferredFrames = new ArrayList<>();
+
+    /**
+     * Serializes streamed frames. Only taken by threads sending files.
+     */
+    private final Object streamLock = new Object();
+
+    /**
+     * Send all frames as binary WebSocket messages.
+     */
+    private boolean binaryTransport;
+
+    /**
+     * Executor running message listeners, {@code null} to run them on the WebSocket read thread.
+     */
+    private volatile Executor dispatchExecutor;
+
+    /**
+     * Maximum number of messages queued per subscription, 0 for unbounded queues.
+     */
+    private int inboundQueueCapacity;
+
+    /**
+     * What to do when a subscription queue is full.
+     */
+    private StompOverflowPolicy overflowPolicy = StompOverflowPolicy.BLOCK;
+
+    /**
+     * Subscription queue listener.
+     */
+    private volatile StompQueueListener queueListener;
+
+    /**
+     * Outbound frame queue, {@code null} when frames are written synchronously.
+     */
+    private volatile StompSendQueue sendQueue;
+
+    /**
+     * Outstanding receipt requests.
+     */
+    private volatile StompReceiptTracker receipts = new StompReceiptTracker(
+            DEFAULT_MAX_RECEIPTS_IN_FLIGHT, DEFAULT_RECEIPT_TIMEOUT, TimeUnit.SECONDS);
+
+    /**
+     * Pending acknowledgements of client-acknowledged subscriptions.
+     */
+    private final StompAckBatcher ackBatcher = new StompAckBatcher(
+            this, DEFAULT_ACK_BATCH, DEFAULT_ACK_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+
+    /**
+     * Heart-beat intervals offered in CONNECT, in milliseconds: minimum outgoing and desired incoming.
+     */
+    private long heartbeatOutgoing;
+    private long heartbeatIncoming;
+
+    /**
+     * Heart-beating of the current connection, {@code null} if none was negotiated.
+     */
+    private volatile StompHeartbeat heartbeat;
+
+    /**
+     * Reconnect scheduling and the outbound buffer used while offline, {@code null} unless reconnecting is enabled.
+     */
+    private volatile StompReconnector reconnector;
+    private volatile StompHoldingBuffer holdingBuffer;
+
+    /**
+     * Durable journal of SEND frames, {@code null} unless enabled.
+     */
+    private volatile StompSpool spool;
+
+    /**
+     * Capture of the raw WebSocket messages, {@code null} unless capturing.
+     */
+    private volatile StompCapture capture;
+
+    /**
+     * Share one broker subscription among all auto-acknowledged subscriptions of a destination.
+     */
+    private volatile boolean multiplexing;
+
+    /**
+     * Shared broker subscriptions by destination, guarded by itself.
+     */
+    private final Map<String, StompSubscription> multiplexed = new HashMap<>();
+
+    /**
+     * Prefetch requested by client-acknowledged subscriptions, {@code null} to leave it to the broker.
+     */
+    private volatile StompPrefetchPolicy prefetchPolicy;
+
+    /**
+     * Instrumentation, {@link StompMetrics#NONE} to skip timing.
+     */
+    private volatile StompMetrics metrics = StompMetrics.NONE;
+
+    /**
+     * Thread reading the current connection, which completes receipts.
+     */
+    private volatile Thread readThread;
+
+    /**
+     * Outbound body compression, {@code null} if disabled.
+     */
+    private volatile StompCompressor compressor;
+
+    /**
+     * Message converters of typed subscriptions and sends.
+     */
+    private final StompConverterRegistry converters = new StompConverterRegistry();
+
     /**
      * {@inheritDoc}
      */
@@ -87,25 +287,139 @@ public class StompClient extends WebSocketClient {
 
     @Override
     public void onOpen(ServerHandshake handshakedata) {
+        readThread = Thread.currentThread();
+        decoder.setMaxFrameSize(maxFrameSize);
+        decoder.setSpillThreshold(spillThreshold, spillDirectory);
         connectStomp();
     }
 
     @Override
     public void onMessage(String message) {
-        StompFrame stompFrame = StompFrame.fromString(message);
+        markRead();
+        StompCapture currentCapture = capture;
+        if (currentCapture != null) {
+            currentCapture.record(0, message);
+        }
+        List<StompFrame> frames;
+        StompMetrics currentMetrics = metrics;
+        try {
+            if (currentMetrics == StompMetrics.NONE) {
+                frames = decoder.decode(message);
+            } else {
+                long start = System.nanoTime();
+                frames = decoder.decode(message);
+                currentMetrics.onDecoded(message.length(), frames.size(), System.nanoTime() - start);
+            }
+        } catch (StompFrameTooLargeException e) {
+            rejectFrame(e);
+            return;
+        }
+        handleFrames(frames);
+    }
+
+    @Override
+    public void onMessage(ByteBuffer bytes) {
+        markRead();
+        StompCapture currentCapture = capture;
+        if (currentCapture != null) {
+            currentCapture.record(StompCapture.BINARY, bytes);
+        }
+        List<StompFrame> frames;
+        StompMetrics currentMetrics = metrics;
+        try {
+            if (currentMetrics == StompMetrics.NONE) {
+                frames = decoder.decode(bytes);
+            } else {
+                int size = bytes.remaining();
+                long start = System.nanoTime();
+                frames = decoder.decode(bytes);
+                currentMetrics.onDecoded(size, frames.size(), System.nanoTime() - start);
+            }
+        } catch (StompFrameTooLargeException e) {
+            rejectFrame(e);
+            return;
+        }
+        handleFrames(frames);
+    }
+
+    /**
+     * Handle the frames decoded from one WebSocket message. A listener failing on one frame, with inline dispatch,
+     * is reported to {@link #onError(Exception)} and does not lose the frames after it.
+     */
+    private void handleFrames(List<StompFrame> frames) {
+        for (StompFrame stompFrame : frames) {
+            try {
+                onStompFrame(stompFrame);
+            } catch (RuntimeException e) {
+                onError(e);
+            }
+        }
+    }
+
+    /**
+     * Close the connection because of an oversized frame. The rest of the stream cannot be decoded.
+     */
+    private void rejectFrame(StompFrameTooLargeException e) {
+        onError(e);
+        close(CloseFrame.TOOBIG, e.getMessage());
+    }
 
+    /**
+     * Handle a single decoded STOMP frame.
+     *
+     * @param stompFrame STOMP frame
+     */
+    protected void onStompFrame(StompFrame stompFrame) {
         switch (stompFrame.getCommand()) {
             case CONNECTED:
                 stompConnected = true;
+                startHeartbeat(stompFrame.getHeader(StompHeader.HEART_BEAT));
+                StompReconnector currentReconnector = reconnector;
+                if (currentReconnector != null) {
+                    currentReconnector.reset();
+                }
+                StompHoldingBuffer buffer = holdingBuffer;
+                if (buffer != null && buffer.isHolding()) {
+                    buffer.release();
+                }
+                StompSpool currentSpool = spool;
+                if (currentSpool != null) {
+                    currentSpool.connected();
+                }
                 if (stompConnectionListener != null) {
                     stompConnectionListener.onConnected();
                 }
                 break;
             case MESSAGE:
-                Integer subscriptionId = Integer.valueOf(
-                        stompFrame.getHeaders().get(StompHeader.SUBSCRIPTION.toString())
-                );
-                subscriptions.get(subscriptionId).getListener().onMessage(stompFrame);
+                StompSubscription subscription = getSubscription(stompFrame);
+                if (subscription == null) {
+                    break;
+                }
+                StompMetrics currentMetrics = metrics;
+                if (currentMetrics == StompMetrics.NONE) {
+                    subscription.dispatcher.dispatch(stompFrame);
+                } else {
+                    long start = System.nanoTime();
+                    subscription.dispatcher.dispatch(stompFrame);
+                    currentMetrics.onMessageReceived(subscription, stompFrame, System.nanoTime() - start);
+                }
+                break;
+            case RECEIPT:
+                StompSpool receiptSpool = spool;
+                if (receiptSpool != null && receiptSpool.onReceipt(stompFrame)) {
+                    break;
+                }
+                long roundTrip = receipts.onReceipt(stompFrame);
+                if (roundTrip >= 0) {
+                    metrics.onReceipt(roundTrip);
+                }
+                break;
+            case ERROR:
+                StompSpool errorSpool = spool;
+                if (errorSpool != null && errorSpool.onError(stompFrame)) {
+                    break;
+                }
+                receipts.onError(stompFrame);
                 break;
             case DISCONNECT:
                 stompConnected = false;
@@ -118,16 +432,129 @@ public class StompClient extends WebSocketClient {
         }
     }
 
+    private void markRead() {
+        StompHeartbeat current = heartbeat;
+        if (current != null) {
+            current.lastReadNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Start heart-beating with the intervals negotiated in CONNECTED.
+     *
+     * @param serverHeartbeat server's heart-beat header value
+     */
+    private void startHeartbeat(String serverHeartbeat) {
+        stopHeartbeat();
+        long[] server = StompHeartbeat.parse(serverHeartbeat);
+        long outgoing = heartbeatOutgoing == 0 || server[1] == 0 ? 0 : Math.max(heartbeatOutgoing, server[1]);
+        long incoming = heartbeatIncoming == 0 || server[0] == 0 ? 0 : Math.max(heartbeatIncoming, server[0]);
+        StompHeartbeat negotiated = new StompHeartbeat(this, outgoing, incoming);
+        if (negotiated.isActive()) {
+            heartbeat = negotiated;
+            negotiated.start();
+        }
+    }
+
+    private void stopHeartbeat() {
+        StompHeartbeat current = heartbeat;
+        if (current != null) {
+            heartbeat = null;
+            current.stop();
+        }
+    }
+
+    /**
+     * Write an EOL heart-beat. Called by the heart-beat timer when the connection has been idle.
+     */
+    void sendHeartbeat() {
+        try {
+            submitFrame(ByteBuffer.wrap(EOL), false);
+        } catch (RuntimeException e) {
+            // The connection is going away, onClose stops the heart-beat
+        }
+    }
+
+    /**
+     * Called by the heart-beat timer when nothing has been received for too long.
+     */
+    void heartbeatTimedOut() {
+        // Leave the shared timer thread free
+        StompScheduler.get().execute(new Runnable() {
+            @Override
+            public void run() {
+                onHeartbeatTimeout();
+            }
+        });
+    }
+
+    /**
+     * The server has not sent anything, not even a heart-beat, within the negotiated interval.
+     * <p>
+     * Notifies the connection listener and drops the connection, which is most likely half-open.
+     */
+    protected void onHeartbeatTimeout() {
+        if (stompConnectionListener != null) {
+            stompConnectionListener.onHeartbeatTimeout();
+        }
+        closeConnection(CloseFrame.ABNORMAL_CLOSE, "STOMP heart-beat timeout");
+    }
+
+    /**
+     * Find the subscription a MESSAGE frame belongs to.
+     *
+     * @param stompFrame MESSAGE frame
+     * @return subscription or {@code null} if it is unknown, e.g. already removed
+     */
+    private StompSubscription getSubscription(StompFrame stompFrame) {
+        String subscriptionId = stompFrame.getHeader(StompHeader.SUBSCRIPTION);
+        if (subscriptionId == null) {
+            return null;
+        }
+        try {
+            return subscriptions.get(Integer.parseInt(subscriptionId));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     @Override
     public void onClose(int code, String reason, boolean remote) {
+        // Reconnect unless the connection was closed normally from this side
+        StompReconnector currentReconnector = reconnector;
+        StompHoldingBuffer buffer = holdingBuffer;
+        boolean reconnect = currentReconnector != null && (remote || code != CloseFrame.NORMAL);
+        if (buffer != null) {
+            if (reconnect) {
+                buffer.hold();
+            } else {
+                buffer.failAll(new WebsocketNotConnectedException());
+            }
+        }
         stompConnected = false;
+        StompSpool currentSpool = spool;
+        if (currentSpool != null) {
+            currentSpool.disconnected();
+        }
+        stopHeartbeat();
+        decoder.reset();
+        ackBatcher.clear();
+        StompSendQueue queue = sendQueue;
+        if (queue != null) {
+            queue.failAll(new WebsocketNotConnectedException());
+        }
+        receipts.failAll(new WebsocketNotConnectedException());
         if (stompConnectionListener != null) {
             stompConnectionListener.onDisconnected();
         }
+        if (reconnect) {
+            currentReconnector.schedule();
+        }
     }
 
     @Override
     public void onError(Exception ex) {
+        metrics.onError(ex);
         ex.printStackTrace();
     }
 
@@ -142,11 +569,14 @@ public class StompClient extends WebSocketClient {
             stompConnectionListener.onConnecting();
         }
 
-        Map<String, String> headers = new HashMap<>();
-        headers.put(StompHeader.ACCEPT_VERSION.toString(), STOMP_VERSION);
-        headers.put(StompHeader.HOST.toString(), uri.getHost());
+        StompFrameEncoder encoder = ENCODER.get().begin(StompCommand.CONNECT)
+                .header(StompHeader.ACCEPT_VERSION, STOMP_VERSION)
+                .header(StompHeader.HOST, uri.getHost());
+        if (heartbeatOutgoing > 0 || heartbeatIncoming > 0) {
+            encoder.header(StompHeader.HEART_BEAT, heartbeatOutgoing + "," + heartbeatIncoming);
+        }
 
-        send(new StompFrame(StompCommand.CONNECT, headers).toString());
+        submitFrame(encoder.end(), false);
     }
 
     /**
@@ -157,102 +587,1242 @@ public class StompClient extends WebSocketClient {
             return;
         }
 
-        send(new StompFrame(StompCommand.DISCONNECT).toString());
+        ackBatcher.flush();
+        submitFrame(ENCODER.get().begin(StompCommand.DISCONNECT).end(), false);
     }
 
     /**
-     * Send text message to the server.
+     * Send a STOMP frame to the server.
+     * <p>
+     * Frames with a binary body, or all frames if binary transport is enabled, are sent as binary WebSocket
+     * messages. Other frames are sent as text messages.
      *
-     * @param destination destination
-     * @param message     text message
+     * @param frame STOMP frame
      */
-    public void send(String destination, String message) {
-        send(destination, message, null);
+    protected void sendStompFrame(StompFrame frame) {
+        submitOrHold(ENCODER.get().encode(frame), frame.hasBinaryBody());
     }
 
     /**
-     * Send text message to the server.
-     *
-     * @param destination destination
-     * @param message     text message
-     * @param headers     (optional) additional headers
+     * Submit a frame, or hold it while a reconnecting client is offline.
      */
-    public void send(String destination, String message, Map<String, String> headers) {
-        if (headers == null) {
-            headers = new HashMap<>();
+    private StompFuture<Void> submitOrHold(ByteBuffer frame, boolean binary) {
+        StompHoldingBuffer buffer = holdingBuffer;
+        if (buffer != null) {
+            StompFuture<Void> held = buffer.offer(frame, binary);
+            if (held != null) {
+                return held;
+            }
         }
+        return submitFrame(frame, binary);
+    }
 
-        headers.put(StompHeader.DESTINATION.toString(), destination);
-        StompFrame frame = new StompFrame(StompCommand.SEND, headers, message);
+    /**
+     * Append a SEND frame to the spool if enabled, otherwise submit or hold it.
+     */
+    private StompFuture<Void> submitSend(ByteBuffer frame, boolean binary) {
+        StompSpool currentSpool = spool;
+        if (currentSpool != null) {
+            currentSpool.append(frame, binary);
+            return SENT;
+        }
+        return submitOrHold(frame, binary);
+    }
 
-        send(frame.toString());
+    /**
+     * Whether a reconnecting client is currently offline and holding frames.
+     */
+    private boolean isHolding() {
+        StompHoldingBuffer buffer = holdingBuffer;
+        return buffer != null && buffer.isHolding();
     }
 
     /**
-     * Subscribe to a specific topic.
+     * Write an encoded frame now, or queue it if asynchronous sending is enabled.
      *
-     * @param destination topic destination
-     * @param listener    listener
-     * @return STOMP subscription data that can be used to unsubscribe
+     * @param frame  encoded STOMP frame
+     * @param binary whether the frame has a binary body
+     * @return future completed once the frame has been handed to the WebSocket
      */
-    public StompSubscription subscribe(String destination, StompMessageListener listener) {
-        StompSubscription subscription = new StompSubscription(UUID.randomUUID().hashCode(), destination, listener);
-
-        Map<String, String> headers = new HashMap<>();
-        headers.put(StompHeader.ID.toString(), String.valueOf(subscription.getId()));
-        headers.put(StompHeader.DESTINATION.toString(), subscription.getDestination());
+    StompFuture<Void> submitFrame(ByteBuffer frame, boolean binary) {
+        StompHeartbeat current = heartbeat;
+        if (current != null) {
+            current.lastWriteNanos = System.nanoTime();
+        }
+        StompSendQueue queue = sendQueue;
+        if (queue != null) {
+            return queue.submit(frame, binary);
+        }
+        sendEncodedFrame(frame, binary);
+        return SENT;
+    }
 
-        StompFrame frame = new StompFrame(StompCommand.SUBSCRIBE, headers);
-        send(frame.toString());
+    /**
+     * Send an encoded STOMP frame to the server.
+     * <p>
+     * The frame is written as a text WebSocket message straight from the UTF-8 bytes, unless it has a binary body or
+     * binary transport is enabled. With asynchronous sending the buffer may hold several coalesced frames.
+     *
+     * @param frame  encoded STOMP frame
+     * @param binary whether the frame has a binary body
+     */
+    protected void sendEncodedFrame(ByteBuffer frame, boolean binary) {
+        synchronized (writeLock) {
+            if (streaming) {
+                byte[] data = new byte[frame.remaining()];
+                frame.get(data);
+                deferredFrames.add(new DeferredFrame(ByteBuffer.wrap(data), binary));
+                return;
+            }
+            writeFrame(frame, binary);
+        }
+    }
 
-        subscriptions.put(subscription.getId(), subscription);
+    /**
+     * Hand a frame to the WebSocket. Called holding {@link #writeLock}.
+     */
+    private void writeFrame(ByteBuffer frame, boolean binary) {
+        StompCapture currentCapture = capture;
+        if (currentCapture != null) {
+            currentCapture.record(binary || binaryTransport
+                    ? StompCapture.OUTBOUND | StompCapture.BINARY : StompCapture.OUTBOUND, frame);
+        }
+        if (binary || binaryTransport) {
+            send(frame);
+        } else {
+            TextFrame textFrame = new TextFrame();
+            textFrame.setPayload(frame);
+            textFrame.setTransferemasked(true);
+            sendFrame(textFrame);
+        }
+    }
 
-        return subscription;
+    /**
+     * Finish a streamed frame and write the frames deferred meanwhile. Called holding {@link #writeLock}.
+     */
+    private void endStreaming() {
+        streaming = false;
+        try {
+            for (DeferredFrame deferred : deferredFrames) {
+                writeFrame(deferred.frame, deferred.binary);
+            }
+        } catch (RuntimeException e) {
+            // The connection is going away, the streamed frame itself is complete
+        } finally {
+            deferredFrames.clear();
+        }
     }
 
     /**
-     * Remove a single subscription.
+     * Send text message to the server.
      *
-     * @param subscription subscription
+     * @param destination destination
+     * @param message     text message
      */
-    public void removeSubscription(StompSubscription subscription) {
-        Map<String, String> headers = new HashMap<>();
-        headers.put(StompHeader.ID.toString(), String.valueOf(subscription.getId()));
-
-        StompFrame frame = new StompFrame(StompCommand.UNSUBSCRIBE, headers);
-        send(frame.toString());
-
-        subscriptions.remove(subscription.getId());
+    public void send(String destination, String message) {
+        send(destination, message, null);
     }
 
     /**
-     * Unsubscribe all from a single topic.
+     * Send text message to the server.
      *
-     * @param destination topic
+     * @param destination destination
+     * @param message     text message
+     * @param headers     (optional) additional headers
      */
-    public void removeAllSubscriptions(String destination) {
-        for (StompSubscription s : subscriptions.values()) {
-            if (s.getDestination().equals(destination)) {
-                removeSubscription(s);
-            }
+    public void send(String destination, String message, Map<String, String> headers) {
+        if (isCompressible(message)) {
+            send(destination, message.getBytes(UTF_8), headers);
+            return;
         }
+        submitSend(recordSend(destination, encodeSend(destination, headers).end(message)), false);
     }
 
     /**
-     * Check if STOMP is currently connected.
+     * Send text message to the server without waiting for the write.
+     * <p>
+     * Without asynchronous sending the message is written on the caller thread and the returned future is already
+     * done.
      *
-     * @return STOMP connection status
+     * @param destination destination
+     * @param message     text message
+     * @param headers     (optional) additional headers
+     * @return future completed once the frame has been handed to the WebSocket
      */
-    public boolean isStompConnected() {
-        return stompConnected;
+    public StompFuture<Void> sendAsync(String destination, String message, Map<String, String> headers) {
+        if (isCompressible(message)) {
+            return sendAsync(destination, message.getBytes(UTF_8), headers);
+        }
+        try {
+            return submitSend(recordSend(destination, encodeSend(destination, headers).end(message)), false);
+        } catch (RuntimeException e) {
+            return StompFuture.failed(e);
+        }
     }
 
     /**
-     * Register STOMP conection listener.
+     * Send binary message to the server.
      *
-     * @param stompConnectionListener listener
+     * @param destination destination
+     * @param body        message body
      */
-    public void setStompConnectionListener(StompConnectionListener stompConnectionListener) {
-        this.stompConnectionListener = stompConnectionListener;
+    public void send(String destination, byte[] body) {
+        send(destination, body, null);
+    }
+
+    /**
+     * Send binary message to the server as a binary WebSocket message.
+     *
+     * @param destination destination
+     * @param body        message body
+     * @param headers     (optional) additional headers
+     */
+    public void send(String destination, byte[] body, Map<String, String> headers) {
+        submitSend(recordSend(destination, endBinary(encodeSend(destination, headers), body)), true);
+    }
+
+    /**
+     * Send binary message to the server without waiting for the write.
+     *
+     * @param destination destination
+     * @param body        message body
+     * @param headers     (optional) additional headers
+     * @return future completed once the frame has been handed to the WebSocket
+     */
+    public StompFuture<Void> sendAsync(String destination, byte[] body, Map<String, String> headers) {
+        try {
+            return submitSend(recordSend(destination, endBinary(encodeSend(destination, headers), body)), true);
+        } catch (RuntimeException e) {
+            return StompFuture.failed(e);
+        }
+    }
+
+    /**
+     * Send text message to the server and request a receipt.
+     * <p>
+     * Blocks while the maximum number of receipts is in flight, so confirmed sends can be pipelined with bounded
+     * memory. Called on the WebSocket read thread, e.g. from a listener without a dispatch executor, it fails right
+     * away instead, since that thread completes the receipts.
+     *
+     * @param destination destination
+     * @param message     text message
+     * @param headers     (optional) additional headers
+     * @return future completed with the RECEIPT frame, or failed on ERROR, timeout or disconnect
+     */
+    public StompFuture<StompFrame> sendWithReceipt(String destination, String message, Map<String, String> headers) {
+        if (isCompressible(message)) {
+            return sendWithReceipt(destination, message.getBytes(UTF_8), headers);
+        }
+        StompFuture<StompFrame> receipt = new StompFuture<>();
+        String receiptId = registerReceipt(receipt);
+        if (receiptId != null) {
+            submitWithReceipt(recordSend(destination, encodeSend(destination, headers)
+                    .header(StompHeader.RECEIPT, receiptId)
+                    .end(message)), false, receiptId);
+        }
+        return receipt;
+    }
+
+    /**
+     * Send binary message to the server and request a receipt.
+     *
+     * @param destination destination
+     * @param body        message body
+     * @param headers     (optional) additional headers
+     * @return future completed with the RECEIPT frame, or failed on ERROR, timeout or disconnect
+     * @see #sendWithReceipt(String, String, Map)
+     */
+    public StompFuture<StompFrame> sendWithReceipt(String destination, byte[] body, Map<String, String> headers) {
+        StompFuture<StompFrame> receipt = new StompFuture<>();
+        String receiptId = registerReceipt(receipt);
+        if (receiptId != null) {
+            submitWithReceipt(recordSend(destination, endBinary(encodeSend(destination, headers)
+                    .header(StompHeader.RECEIPT, receiptId), body)), true, receiptId);
+        }
+        return receipt;
+    }
+
+    /**
+     * Reserve a receipt id. The read thread, e.g. running an inline listener, never waits for a free slot, since only
+     * it can complete the receipts in flight.
+     */
+    private String registerReceipt(StompFuture<StompFrame> receipt) {
+        return receipts.register(receipt, Thread.currentThread() != readThread);
+    }
+
+    /**
+     * Submit a frame carrying a receipt request, failing the receipt if the frame cannot be written.
+     */
+    private void submitWithReceipt(ByteBuffer frame, boolean binary, final String receiptId) {
+        final StompReceiptTracker tracker = receipts;
+        try {
+            final StompFuture<Void> written = submitOrHold(frame, binary);
+            if (written != SENT) {
+                written.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (written.getFailure() != null) {
+                            tracker.fail(receiptId, written.getFailure());
+                        }
+                    }
+                });
+            }
+        } catch (RuntimeException e) {
+            tracker.fail(receiptId, e);
+        }
+    }
+
+    /**
+     * Send the rest of a file as a binary message body, streamed in WebSocket fragments so that the body is never
+     * held on the heap as a whole.
+     * <p>
+     * The body runs from the channel's position to its end and the position is advanced. The frame is written on
+     * the caller thread, bypassing asynchronous sending and compression. Other frames are written once it is
+     * complete, without blocking their writers, and other streamed frames wait. If the channel fails midway, the
+     * connection is closed since the frame cannot be finished.
+     *
+     * @param destination destination
+     * @param body        file to send
+     * @param headers     (optional) additional headers
+     * @throws IOException if the file cannot be read
+     */
+    public void send(String destination, FileChannel body, Map<String, String> headers) throws IOException {
+        long length = body.size() - body.position();
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("STOMP body too large: " + length);
+        }
+        if (isHolding()) {
+            throw new WebsocketNotConnectedException();
+        }
+        ByteBuffer head = recordSend(destination, encodeSend(destination, headers).endHeaders(length));
+        ByteBuffer fragment = ByteBuffer.allocate(Math.max(STREAM_FRAGMENT_SIZE, head.remaining() + 1));
+        fragment.put(head);
+        long remaining = length;
+
+        synchronized (streamLock) {
+            try {
+                while (true) {
+                    // Read outside the write lock, so that other writers never wait for the file
+                    while (remaining > 0 && fragment.hasRemaining()) {
+                        int limit = fragment.limit();
+                        if (fragment.remaining() > remaining) {
+                            fragment.limit(fragment.position() + (int) remaining);
+                        }
+                        int n = body.read(fragment);
+                        fragment.limit(limit);
+                        if (n < 0) {
+                            throw new EOFException("STOMP body ended " + remaining + " bytes early");
+                        }
+                        remaining -= n;
+                    }
+                    boolean last = remaining == 0 && fragment.hasRemaining();
+                    if (last) {
+                        fragment.put((byte) 0);
+                    }
+                    fragment.flip();
+                    synchronized (writeLock) {
+                        StompHeartbeat current = heartbeat;
+                        if (current != null) {
+                            current.lastWriteNanos = System.nanoTime();
+                        }
+                        StompCapture currentCapture = capture;
+                        if (currentCapture != null) {
+                            currentCapture.record(last ? StompCapture.OUTBOUND | StompCapture.BINARY
+                                    : StompCapture.OUTBOUND | StompCapture.BINARY | StompCapture.FRAGMENT, fragment);
+                        }
+                        streaming = true;
+                        sendFragmentedFrame(Framedata.Opcode.BINARY, fragment, last);
+                        if (last) {
+                            endStreaming();
+                            return;
+                        }
+                    }
+                    fragment.clear();
+                }
+            } catch (IOException | RuntimeException e) {
+                synchronized (writeLock) {
+                    streaming = false;
+                    deferredFrames.clear();
+                }
+                close(CloseFrame.UNEXPECTED_CONDITION, "Incomplete STOMP frame");
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Convert an object with the matching {@link StompMessageConverter} and send it as a binary body.
+     *
+     * @param destination destination
+     * @param payload     message object
+     */
+    public void send(String destination, Object payload) {
+        send(destination, payload, null);
+    }
+
+    /**
+     * Convert an object with the matching {@link StompMessageConverter} and send it as a binary body. The converter's
+     * content type is written unless the headers contain one.
+     *
+     * @param destination destination
+     * @param payload     message object
+     * @param headers     (optional) additional headers
+     * @throws IllegalArgumentException if no converter writes the payload's type
+     */
+    public void send(String destination, Object payload, Map<String, String> headers) {
+        if (payload == null) {
+            throw new IllegalArgumentException("Payload is required");
+        }
+        StompMessageConverter converter = converters.writer(payload.getClass());
+        byte[] body = converter.write(payload);
+        StompFrameEncoder encoder = encodeSend(destination, headers);
+        String contentType = converter.getContentType();
+        if (contentType != null && (headers == null || !headers.containsKey(StompHeader.CONTENT_TYPE.toString()))) {
+            encoder.header(StompHeader.CONTENT_TYPE, contentType);
+        }
+        submitSend(recordSend(destination, endBinary(encoder, body)), true);
+    }
+
+    /**
+     * Start encoding a SEND frame.
+     */
+    private static StompFrameEncoder encodeSend(String destination, Map<String, String> headers) {
+        return ENCODER.get().begin(StompCommand.SEND)
+                .header(StompHeader.DESTINATION, destination)
+                .headers(headers);
+    }
+
+    /**
+     * Whether a text body is large enough to be compressed. Compressed text is sent as a binary body.
+     */
+    private boolean isCompressible(String message) {
+        StompCompressor current = compressor;
+        // Chars never outnumber UTF-8 bytes, so this may only miss bodies just above the threshold
+        return current != null && message != null && message.length() >= current.getMinSize();
+    }
+
+    /**
+     * Finish a frame with a binary body, deflated if compression is enabled and makes it smaller.
+     */
+    private ByteBuffer endBinary(StompFrameEncoder encoder, byte[] body) {
+        StompCompressor current = compressor;
+        if (current == null || body == null || body.length < current.getMinSize()) {
+            return encoder.end(body);
+        }
+        StompCompressor.Deflating deflated = current.deflate(body);
+        if (deflated == null) {
+            return encoder.end(body);
+        }
+        try {
+            return encoder.header(StompHeader.CONTENT_ENCODING, StompCompressor.DEFLATE)
+                    .end(deflated.buffer, 0, deflated.length);
+        } finally {
+            current.release(deflated);
+        }
+    }
+
+    /**
+     * Count an encoded SEND frame in the metrics.
+     */
+    private ByteBuffer recordSend(String destination, ByteBuffer frame) {
+        metrics.onMessageSent(destination, frame.remaining());
+        return frame;
+    }
+
+    /**
+     * Subscribe to a specific topic.
+     *
+     * @param destination topic destination
+     * @param listener    listener
+     * @return STOMP subscription data that can be used to unsubscribe
+     */
+    public StompSubscription subscribe(String destination, StompMessageListener listener) {
+        return subscribe(destination, listener, StompAckMode.AUTO);
+    }
+
+    /**
+     * Subscribe to a specific topic with the given acknowledgement mode.
+     * <p>
+     * With {@link StompAckMode#CLIENT} or {@link StompAckMode#CLIENT_INDIVIDUAL} every message is acknowledged once
+     * the listener returns, or negatively acknowledged if it throws, so the broker only has a bounded number of
+     * unacknowledged messages in flight and redelivers those that failed. Acknowledgements are batched, see
+     * {@link #setAckBatching(int, long, TimeUnit)}.
+     *
+     * @param destination topic destination
+     * @param listener    listener
+     * @param ackMode     acknowledgement mode
+     * @return STOMP subscription data that can be used to unsubscribe
+     */
+    public StompSubscription subscribe(String destination, StompMessageListener listener, StompAckMode ackMode) {
+        if (multiplexing && ackMode == StompAckMode.AUTO) {
+            return subscribeMultiplexed(destination, listener);
+        }
+        return subscribeDirect(destination, listener, ackMode, null);
+    }
+
+    /**
+     * Subscribe to a specific topic, converting message bodies straight from their bytes.
+     * <p>
+     * The converter is chosen by the message's {@code content-type} and the target type, see
+     * {@link #addMessageConverter(StompMessageConverter)}. A body that cannot be converted is reported to
+     * {@link #onError(Exception)}.
+     *
+     * @param destination topic destination
+     * @param type        message type
+     * @param listener    listener
+     * @param <T>         message type
+     * @return STOMP subscription data that can be used to unsubscribe
+     */
+    public <T> StompSubscription subscribe(String destination, Class<T> type, StompTypedListener<? super T> listener) {
+        return subscribe(destination, type, listener, StompAckMode.AUTO);
+    }
+
+    /**
+     * Subscribe to a specific topic with the given acknowledgement mode, converting message bodies straight from
+     * their bytes. Messages that cannot be converted are NACKed under client acknowledgement.
+     *
+     * @param destination topic destination
+     * @param type        message type
+     * @param listener    listener
+     * @param ackMode     acknowledgement mode
+     * @param <T>         message type
+     * @return STOMP subscription data that can be used to unsubscribe
+     * @see #subscribe(String, Class, StompTypedListener)
+     */
+    public <T> StompSubscription subscribe(String destination, Class<T> type, StompTypedListener<? super T> listener,
+                                           StompAckMode ackMode) {
+        return subscribe(destination, new StompConvertingListener<>(converters, type, listener), ackMode);
+    }
+
+    /**
+     * Subscribe to a specific topic, delivering only the latest message per key.
+     * <p>
+     * While the listener is busy, a new message replaces the pending one with the same key in place, so a slow
+     * listener sees the latest value of every key in order of first arrival and bursts do not build up latency.
+     * Bodies of replaced messages are never decoded. Conflation needs a dispatch executor, see
+     * {@link #setDispatchExecutor(Executor)}; on the read thread every message is delivered. The subscription is
+     * auto-acknowledged and always gets its own broker subscription.
+     *
+     * @param destination topic destination
+     * @param listener    listener
+     * @param conflation  conflation key, e.g. {@link StompConflationKey#header(String)}
+     * @return STOMP subscription data that can be used to unsubscribe
+     */
+    public StompSubscription subscribe(String destination, StompMessageListener listener,
+                                       StompConflationKey conflation) {
+        if (conflation == null) {
+            throw new IllegalArgumentException("Conflation key is required");
+        }
+        return subscribeDirect(destination, listener, StompAckMode.AUTO, conflation);
+    }
+
+    /**
+     * Attach a local subscription to the destination's shared broker subscription, subscribing if there is none.
+     */
+    private StompSubscription subscribeMultiplexed(String destination, StompMessageListener listener) {
+        synchronized (multiplexed) {
+            StompSubscription shared = multiplexed.get(destination);
+            if (shared == null) {
+                shared = subscribeDirect(destination, new StompFanOut(this), StompAckMode.AUTO, null);
+                multiplexed.put(destination, shared);
+            }
+            StompSubscription local = new StompSubscription(subscriptions.nextId(), destination, listener);
+            local.shared = shared;
+            ((StompFanOut) shared.getListener()).add(local);
+            return local;
+        }
+    }
+
+    private StompSubscription subscribeDirect(String destination, StompMessageListener listener,
+                                              StompAckMode ackMode, StompConflationKey conflation) {
+        StompSubscription subscription = createSubscription(destination, listener, ackMode, conflation);
+        StompHoldingBuffer buffer = holdingBuffer;
+        if (buffer != null) {
+            synchronized (buffer) {
+                if (buffer.isHolding()) {
+                    // Subscribed together with the others once connected
+                    subscriptions.add(subscription);
+                    return subscription;
+                }
+            }
+        }
+
+        ByteBuffer frame = encodeSubscribe(subscription).end();
+        // Register first so that no MESSAGE can arrive for an unknown subscription
+        subscriptions.add(subscription);
+        try {
+            submitFrame(frame, false);
+        } catch (RuntimeException e) {
+            subscriptions.remove(subscription.getId());
+            throw e;
+        }
+
+        return subscription;
+    }
+
+    /**
+     * Subscribe to a specific topic and request a receipt confirming the subscription.
+     * <p>
+     * The subscription is registered right away; if the receipt fails it stays registered and can be removed with
+     * {@link #removeSubscription(StompSubscription)}. Like {@link #sendWithReceipt(String, String, Map)}, this blocks
+     * while the maximum number of receipts is in flight, except on the WebSocket read thread where it fails right
+     * away.
+     *
+     * @param destination topic destination
+     * @param listener    listener
+     * @return future completed with the subscription once the server has confirmed it
+     */
+    public StompFuture<StompSubscription> subscribeWithReceipt(String destination, StompMessageListener listener) {
+        return subscribeWithReceipt(destination, listener, StompAckMode.AUTO);
+    }
+
+    /**
+     * Subscribe to a specific topic with the given acknowledgement mode and request a receipt confirming the
+     * subscription.
+     *
+     * @param destination topic destination
+     * @param listener    listener
+     * @param ackMode     acknowledgement mode
+     * @return future completed with the subscription once the server has confirmed it
+     * @see #subscribe(String, StompMessageListener, StompAckMode)
+     */
+    public StompFuture<StompSubscription> subscribeWithReceipt(String destination, StompMessageListener listener,
+                                                               StompAckMode ackMode) {
+        final StompFuture<StompSubscription> result = new StompFuture<>();
+        final StompFuture<StompFrame> receipt = new StompFuture<>();
+        String receiptId = registerReceipt(receipt);
+        if (receiptId == null) {
+            result.fail(receipt.getFailure());
+            return result;
+        }
+
+        final StompSubscription subscription = createSubscription(destination, listener, ackMode, null);
+        receipt.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (receipt.getFailure() != null) {
+                    result.fail(receipt.getFailure());
+                } else {
+                    result.complete(subscription);
+                }
+            }
+        });
+        StompHoldingBuffer buffer = holdingBuffer;
+        if (buffer != null) {
+            synchronized (buffer) {
+                if (buffer.isHolding()) {
+                    // Subscribed with the receipt request together with the others once connected
+                    subscription.heldReceipt = receiptId;
+                    subscriptions.add(subscription);
+                    return result;
+                }
+            }
+        }
+
+        ByteBuffer frame = encodeSubscribe(subscription)
+                .header(StompHeader.RECEIPT, receiptId)
+                .end();
+        subscriptions.add(subscription);
+        try {
+            // Not held, the subscription is replayed on reconnect anyway
+            submitFrame(frame, false);
+        } catch (RuntimeException e) {
+            receipts.fail(receiptId, e);
+        }
+
+        return result;
+    }
+
+    private StompSubscription createSubscription(String destination, StompMessageListener listener,
+                                                 StompAckMode ackMode, StompConflationKey conflation) {
+        if (ackMode == null) {
+            throw new IllegalArgumentException("Ack mode is required");
+        }
+        StompSubscription subscription = new StompSubscription(subscriptions.nextId(), destination, listener,
+                ackMode);
+        subscription.dispatcher = new StompSubscriptionDispatcher(this, subscription,
+                inboundQueueCapacity, overflowPolicy, conflation);
+        return subscription;
+    }
+
+    /**
+     * Start encoding a SUBSCRIBE frame.
+     */
+    private StompFrameEncoder encodeSubscribe(StompSubscription subscription) {
+        StompFrameEncoder encoder = ENCODER.get().begin(StompCommand.SUBSCRIBE)
+                .header(StompHeader.ID, subscription.getId())
+                .header(StompHeader.DESTINATION, subscription.getDestination());
+        if (subscription.getAckMode() != StompAckMode.AUTO) {
+            encoder.header(StompHeader.ACK, subscription.getAckMode().toString());
+            StompPrefetchPolicy prefetch = prefetchPolicy;
+            if (prefetch != null) {
+                encoder.header(prefetch.getHeader(),
+                        Integer.toString(prefetch.getPrefetch(subscription.getDestination())));
+            }
+        }
+        return encoder;
+    }
+
+    /**
+     * Queue an ACK or NACK for a message delivered to a client-acknowledged subscription.
+     *
+     * @param subscription subscription
+     * @param message      MESSAGE frame
+     * @param ack          {@code true} for ACK, {@code false} for NACK
+     */
+    void acknowledge(StompSubscription subscription, StompFrame message, boolean ack) {
+        if (isHolding()) {
+            // Acknowledgements do not survive the connection, the broker redelivers the message
+            return;
+        }
+        String ackId = message.getHeader(StompHeader.ACK);
+        if (ackId != null) {
+            ackBatcher.add(subscription, ackId, false, ack);
+            return;
+        }
+        // STOMP 1.1 servers identify messages by subscription and message-id instead
+        String messageId = message.getHeader(StompHeader.MESSAGE_ID);
+        if (messageId != null) {
+            ackBatcher.add(subscription, messageId, true, ack);
+        }
+    }
+
+    /**
+     * Re-issue SUBSCRIBE for every registered subscription as a single WebSocket message. Called after reconnecting,
+     * under the holding buffer's lock. Subscriptions made with a receipt while offline request it now.
+     */
+    void replaySubscriptions() {
+        List<StompSubscription> all = subscriptions.getAll();
+        if (all.isEmpty()) {
+            return;
+        }
+        ByteBuffer bulk = ByteBuffer.allocate(all.size() * 128);
+        for (StompSubscription subscription : all) {
+            StompFrameEncoder encoder = encodeSubscribe(subscription);
+            if (subscription.heldReceipt != null) {
+                encoder.header(StompHeader.RECEIPT, subscription.heldReceipt);
+            }
+            ByteBuffer frame = encoder.end();
+            if (bulk.remaining() < frame.remaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(
+                        Math.max(bulk.capacity() * 2, bulk.position() + frame.remaining()));
+                bulk.flip();
+                grown.put(bulk);
+                bulk = grown;
+            }
+            bulk.put(frame);
+        }
+        bulk.flip();
+        submitFrame(bulk, false);
+        for (StompSubscription subscription : all) {
+            subscription.heldReceipt = null;
+        }
+    }
+
+    /**
+     * Remove a single subscription.
+     *
+     * @param subscription subscription
+     */
+    public void removeSubscription(StompSubscription subscription) {
+        StompSubscription shared = subscription.shared;
+        if (shared != null) {
+            synchronized (multiplexed) {
+                // Unsubscribe from the broker only when the last local subscription leaves
+                boolean last = ((StompFanOut) shared.getListener()).remove(subscription);
+                if (!last || multiplexed.get(shared.getDestination()) != shared) {
+                    return;
+                }
+                multiplexed.remove(shared.getDestination());
+            }
+            subscription = shared;
+        } else if (subscription.getListener() instanceof StompFanOut) {
+            synchronized (multiplexed) {
+                if (multiplexed.get(subscription.getDestination()) == subscription) {
+                    multiplexed.remove(subscription.getDestination());
+                }
+            }
+        }
+
+        if (subscription.getAckMode() != StompAckMode.AUTO) {
+            // Acknowledgements are only valid while the subscription is active
+            ackBatcher.flush();
+        }
+        if (!isHolding()) {
+            ByteBuffer frame = ENCODER.get().begin(StompCommand.UNSUBSCRIBE)
+                    .header(StompHeader.ID, subscription.getId())
+                    .end();
+            submitFrame(frame, false);
+        }
+
+        StompSubscription removed = subscriptions.remove(subscription.getId());
+        if (removed != null) {
+            removed.dispatcher.cancel();
+            metrics.onSubscriptionRemoved(removed);
+        }
+    }
+
+    /**
+     * Unsubscribe all from a single topic.
+     *
+     * @param destination topic
+     */
+    public void removeAllSubscriptions(String destination) {
+        for (StompSubscription s : subscriptions.getArray(destination)) {
+            removeSubscription(s);
+        }
+    }
+
+    /**
+     * Check if STOMP is currently connected.
+     *
+     * @return STOMP connection status
+     */
+    public boolean isStompConnected() {
+        return stompConnected;
+    }
+
+    /**
+     * Send every frame, including text ones, as binary WebSocket messages.
+     * <p>
+     * Binary messages skip the UTF-16 round trip of text messages and allow NUL bytes in bodies, but some brokers
+     * only accept text messages.
+     *
+     * @param binaryTransport {@code true} to use binary messages for all frames
+     */
+    public void setBinaryTransport(boolean binaryTransport) {
+        this.binaryTransport = binaryTransport;
+    }
+
+    /**
+     * Run message listeners on the given executor instead of the WebSocket read thread.
+     * <p>
+     * Messages of a single subscription are still delivered one at a time and in order, while different
+     * subscriptions are handled in parallel. Any executor can be used, e.g. a fixed thread pool or a
+     * virtual-thread-per-task executor on newer JVMs. The executor is not shut down by the client.
+     *
+     * @param dispatchExecutor executor or {@code null} to dispatch on the read thread (default)
+     */
+    public void setDispatchExecutor(Executor dispatchExecutor) {
+        this.dispatchExecutor = dispatchExecutor;
+    }
+
+    /**
+     * Get the executor running message listeners.
+     *
+     * @return executor or {@code null} if listeners run on the WebSocket read thread
+     */
+    public Executor getDispatchExecutor() {
+        return dispatchExecutor;
+    }
+
+    /**
+     * Queue outgoing frames and write them from a background writer instead of the caller thread.
+     * <p>
+     * Adjacent frames are coalesced into a single WebSocket message of up to {@code maxMessageSize} bytes. The
+     * writer waits up to {@code maxDelay} after the first queued frame for more frames to arrive; with no delay it
+     * only coalesces frames queued while it is busy. Brokers must accept several STOMP frames per WebSocket message.
+     *
+     * @param maxMessageSize maximum size of a coalesced WebSocket message in bytes
+     * @param maxDelay       maximum time a frame waits for others to coalesce with
+     * @param unit           unit of {@code maxDelay}
+     */
+    public void enableAsyncSend(int maxMessageSize, long maxDelay, TimeUnit unit) {
+        if (maxMessageSize <= 0) {
+            throw new IllegalArgumentException("Invalid maximum message size: " + maxMessageSize);
+        }
+        sendQueue = new StompSendQueue(this, maxMessageSize, maxDelay, unit);
+    }
+
+    /**
+     * Write frames synchronously on the caller thread (default). Frames that are already queued are still written.
+     */
+    public void disableAsyncSend() {
+        sendQueue = null;
+    }
+
+    /**
+     * Check if outgoing frames are queued and written asynchronously.
+     *
+     * @return asynchronous sending status
+     */
+    public boolean isAsyncSend() {
+        return sendQueue != null;
+    }
+
+    /**
+     * Configure receipt tracking.
+     *
+     * @param maxInFlight maximum number of outstanding receipts; further requests block until one completes
+     * @param timeout     time to wait for a receipt, and for a free slot, before failing
+     * @param unit        unit of {@code timeout}
+     * @throws IllegalStateException if receipts are currently outstanding
+     */
+    public void setReceiptLimits(int maxInFlight, long timeout, TimeUnit unit) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("Invalid maximum number of receipts in flight: " + maxInFlight);
+        }
+        if (receipts.getInFlight() > 0) {
+            throw new IllegalStateException("STOMP receipts are outstanding");
+        }
+        receipts = new StompReceiptTracker(maxInFlight, timeout, unit);
+    }
+
+    /**
+     * Reconnect automatically when the connection is lost.
+     * <p>
+     * Attempts are made with exponential backoff and jitter, starting at {@code initialDelay} and doubling up to
+     * {@code maxDelay}. Once connected again, every registered subscription is re-issued in a single message. Frames
+     * sent while offline are held, up to {@code maxBufferedBytes}, and written after the subscriptions; sending
+     * fails with {@link IllegalStateException} when the buffer is full. SUBSCRIBE and UNSUBSCRIBE only update the
+     * registry while offline, and acknowledgements are dropped as the broker redelivers unacknowledged messages.
+     * <p>
+     * Closing the connection normally from this side, e.g. with {@link #close()}, does not reconnect.
+     *
+     * @param initialDelay     delay before the first attempt
+     * @param maxDelay         maximum delay between attempts
+     * @param unit             unit of the delays
+     * @param maxBufferedBytes maximum size of frames held while offline
+     */
+    public void enableReconnect(long initialDelay, long maxDelay, TimeUnit unit, int maxBufferedBytes) {
+        if (initialDelay <= 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("Invalid reconnect delays: " + initialDelay + ".." + maxDelay);
+        }
+        if (maxBufferedBytes < 0) {
+            throw new IllegalArgumentException("Negative outbound buffer size: " + maxBufferedBytes);
+        }
+        disableReconnect();
+        StompHoldingBuffer buffer = new StompHoldingBuffer(this, maxBufferedBytes);
+        if (!stompConnected) {
+            buffer.hold();
+        }
+        holdingBuffer = buffer;
+        reconnector = new StompReconnector(this, initialDelay, maxDelay, unit);
+    }
+
+    /**
+     * Stop reconnecting (default). Frames held while offline are failed.
+     */
+    public void disableReconnect() {
+        StompReconnector currentReconnector = reconnector;
+        if (currentReconnector != null) {
+            reconnector = null;
+            currentReconnector.stop();
+        }
+        StompHoldingBuffer buffer = holdingBuffer;
+        if (buffer != null) {
+            holdingBuffer = null;
+            buffer.failAll(new WebsocketNotConnectedException());
+        }
+    }
+
+    /**
+     * Check if the client reconnects automatically.
+     *
+     * @return reconnect status
+     */
+    public boolean isReconnectEnabled() {
+        return reconnector != null;
+    }
+
+    /**
+     * Record the raw WebSocket messages received and written by this client, e.g. to replay them offline with a
+     * {@link StompCaptureReplayer}. Recording only copies each message into the capture's queue. The capture stays
+     * open when replaced; close it to write the remaining messages.
+     *
+     * @param capture capture or {@code null} to stop capturing
+     */
+    public void setCapture(StompCapture capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Journal SEND frames in memory-mapped segment files under {@code directory} and write them with a receipt
+     * request, giving at-least-once delivery across disconnects and process restarts.
+     * <p>
+     * Frames sent with {@code send} or {@code sendAsync} are appended to the journal and written right away while
+     * connected. Frames sent while disconnected stay in the journal, and on CONNECTED every frame the server has not
+     * yet confirmed with a RECEIPT is written again in order, including those left by a previous run. Confirmed
+     * segments are deleted. A spooled frame the server rejects with ERROR is dropped and reported to
+     * {@link #onError(Exception)}. Returned futures complete once the frame is in the journal.
+     * <p>
+     * Frames sent with a receipt of their own or streamed from a file bypass the spool. Writes to the mapped files
+     * survive a crash of the process, but not of the operating system.
+     *
+     * @param directory   journal directory, created if missing; one client at a time may use it
+     * @param segmentSize size of each segment file in bytes, which also limits the size of a frame
+     * @throws IOException           if the journal cannot be opened
+     * @throws IllegalStateException if another client uses the directory
+     */
+    public void enableSpool(File directory, int segmentSize) throws IOException {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Invalid STOMP spool segment size: " + segmentSize);
+        }
+        disableSpool();
+        StompSpool created = new StompSpool(this, directory, segmentSize);
+        spool = created;
+        if (stompConnected) {
+            created.connected();
+        }
+    }
+
+    /**
+     * Stop journaling SEND frames (default). Unconfirmed frames stay in the journal until it is enabled again.
+     */
+    public void disableSpool() {
+        StompSpool currentSpool = spool;
+        if (currentSpool != null) {
+            spool = null;
+            currentSpool.close();
+        }
+    }
+
+    /**
+     * Number of spooled frames the server has not yet confirmed.
+     *
+     * @return unconfirmed frame count, 0 if the spool is disabled
+     */
+    public long getSpooledCount() {
+        StompSpool currentSpool = spool;
+        return currentSpool != null ? currentSpool.getUnconfirmed() : 0;
+    }
+
+    /**
+     * Offer heart-beating when connecting.
+     * <p>
+     * The intervals actually used are negotiated with the server in CONNECT/CONNECTED. An EOL is written only when
+     * nothing else has been written for the outgoing interval. If nothing is received for twice the incoming
+     * interval, {@link #onHeartbeatTimeout()} is called. Timers of all clients share a single thread. Takes effect
+     * with the next connection.
+     *
+     * @param outgoingInterval smallest interval the client can guarantee between writes, 0 for none (default)
+     * @param incomingInterval desired interval between reads, 0 for none (default)
+     * @param unit             unit of the intervals, rounded to milliseconds
+     */
+    public void setHeartbeat(long outgoingInterval, long incomingInterval, TimeUnit unit) {
+        if (outgoingInterval < 0 || incomingInterval < 0) {
+            throw new IllegalArgumentException("Negative heart-beat interval");
+        }
+        this.heartbeatOutgoing = unit.toMillis(outgoingInterval);
+        this.heartbeatIncoming = unit.toMillis(incomingInterval);
+    }
+
+    /**
+     * Configure batching of ACK and NACK frames.
+     * <p>
+     * Acknowledgements are written as a single WebSocket message once {@code maxBatch} are pending or
+     * {@code flushInterval} after the first of them. Longer intervals save writes but keep messages unacknowledged,
+     * and so count against the broker's prefetch window, for longer.
+     *
+     * @param maxBatch      maximum number of acknowledgements per message
+     * @param flushInterval maximum time an acknowledgement is held back, 0 to write each one immediately
+     * @param unit          unit of {@code flushInterval}
+     */
+    public void setAckBatching(int maxBatch, long flushInterval, TimeUnit unit) {
+        if (maxBatch <= 0) {
+            throw new IllegalArgumentException("Invalid ack batch size: " + maxBatch);
+        }
+        ackBatcher.configure(maxBatch, flushInterval, unit);
+    }
+
+    /**
+     * Share one broker subscription among all subscriptions of a destination.
+     * <p>
+     * With multiplexing, {@link #subscribe(String, StompMessageListener)} only sends SUBSCRIBE for the first
+     * subscription of a destination. Further subscriptions are served from the same broker subscription. Messages
+     * are passed to their listeners in subscription order, and all listeners receive the same frame instance.
+     * UNSUBSCRIBE is sent when the last of them is removed. Subscriptions with client acknowledgement and those made
+     * with a receipt always get their own broker subscription. Only applies to subscriptions made afterwards.
+     *
+     * @param multiplexing {@code true} to share broker subscriptions, {@code false} for one each (default)
+     */
+    public void setMultiplexing(boolean multiplexing) {
+        this.multiplexing = multiplexing;
+    }
+
+    /**
+     * Request an adaptive prefetch window when subscribing with client acknowledgement.
+     *
+     * @param prefetchPolicy policy or {@code null} to use the broker's default (default)
+     */
+    public void setPrefetchPolicy(StompPrefetchPolicy prefetchPolicy) {
+        this.prefetchPolicy = prefetchPolicy;
+    }
+
+    /**
+     * Get the prefetch policy.
+     *
+     * @return policy or {@code null}
+     */
+    public StompPrefetchPolicy getPrefetchPolicy() {
+        return prefetchPolicy;
+    }
+
+    /**
+     * Install instrumentation, e.g. a {@link StompMetricsCollector}.
+     * <p>
+     * With the default {@link StompMetrics#NONE} no timestamps are taken on the inbound and outbound paths.
+     *
+     * @param metrics metrics or {@code null} to disable instrumentation
+     */
+    public void setMetrics(StompMetrics metrics) {
+        this.metrics = metrics != null ? metrics : StompMetrics.NONE;
+    }
+
+    public StompMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Register a message converter for typed subscriptions and sends. Converters are consulted in registration order,
+     * before the built-in {@link StompMessageConverter#text()} and {@link StompMessageConverter#bytes()}.
+     *
+     * @param converter converter
+     */
+    public void addMessageConverter(StompMessageConverter converter) {
+        if (converter == null) {
+            throw new IllegalArgumentException("Converter is required");
+        }
+        converters.add(converter);
+    }
+
+    /**
+     * Set the maximum size of inbound frames. The connection is closed with {@link CloseFrame#TOOBIG} as soon as a
+     * larger frame is detected, usually from its {@code content-length} header before the body has arrived. Applies
+     * from the next connection. Compressed bodies that inflate beyond it are rejected and reported to
+     * {@link #onError(Exception)}.
+     *
+     * @param maxFrameSize maximum frame size in bytes
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        if (maxFrameSize <= 0) {
+            throw new IllegalArgumentException("Invalid maximum STOMP frame size: " + maxFrameSize);
+        }
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Get the maximum size of inbound frames, which also limits decompressed bodies.
+     *
+     * @return maximum frame size in bytes
+     */
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Stream inbound message bodies of at least {@code threshold} bytes into memory-mapped temporary files instead
+     * of heap buffers. Listeners should read such bodies with {@link StompFrame#getBodyBuffer()} or
+     * {@link StompFrame#getBodyStream()}, which read straight from the mapping. Bodies need a {@code content-length}
+     * header to be spilled. Applies from the next connection.
+     *
+     * @param threshold smallest body to spill in bytes
+     * @param directory (optional) directory of the temporary files, the default temporary directory if {@code null}
+     */
+    public void setSpillThreshold(int threshold, File directory) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("Invalid STOMP spill threshold: " + threshold);
+        }
+        this.spillThreshold = threshold;
+        this.spillDirectory = directory;
+    }
+
+    /**
+     * Compress outbound message bodies of at least {@code minSize} bytes with deflate, marked with a
+     * {@code content-encoding: deflate} header. Compressed messages are sent as binary WebSocket messages. Bodies that
+     * do not get smaller are sent as they are.
+     * <p>
+     * Inbound MESSAGE frames with that header are always decompressed before they reach the listener, whether or not
+     * outbound compression is enabled.
+     *
+     * @param minSize smallest body to compress, in bytes
+     * @param level   deflate level from {@link java.util.zip.Deflater#BEST_SPEED} to
+     *                {@link java.util.zip.Deflater#BEST_COMPRESSION}, or
+     *                {@link java.util.zip.Deflater#DEFAULT_COMPRESSION}
+     */
+    public void enableCompression(int minSize, int level) {
+        if (minSize < 0) {
+            throw new IllegalArgumentException("Invalid minimum compressed size: " + minSize);
+        }
+        if ((level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+                && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid deflate level: " + level);
+        }
+        compressor = new StompCompressor(minSize, level);
+    }
+
+    /**
+     * Stop compressing outbound message bodies.
+     */
+    public void disableCompression() {
+        compressor = null;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressor != null;
+    }
+
+    /**
+     * Bound the number of messages queued per subscription while waiting for the dispatch executor.
+     * <p>
+     * Only applies with a dispatch executor and to subscriptions made afterwards.
+     *
+     * @param capacity       maximum queued messages per subscription, 0 for unbounded (default)
+     * @param overflowPolicy what to do with messages arriving while the queue is full
+     */
+    public void setInboundQueueCapacity(int capacity, StompOverflowPolicy overflowPolicy) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Negative inbound queue capacity: " + capacity);
+        }
+        this.inboundQueueCapacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Get the number of messages of a subscription waiting for its listener.
+     *
+     * @param subscription subscription
+     * @return queue depth
+     */
+    public int getQueueDepth(StompSubscription subscription) {
+        StompSubscription target = subscription.shared != null ? subscription.shared : subscription;
+        return target.dispatcher != null ? target.dispatcher.getDepth() : 0;
+    }
+
+    /**
+     * Register subscription queue listener.
+     *
+     * @param queueListener listener
+     */
+    public void setQueueListener(StompQueueListener queueListener) {
+        this.queueListener = queueListener;
+    }
+
+    /**
+     * Get subscription queue listener.
+     *
+     * @return listener or {@code null}
+     */
+    public StompQueueListener getQueueListener() {
+        return queueListener;
+    }
+
+    /**
+     * Register STOMP conection listener.
+     *
+     * @param stompConnectionListener listener
+     */
+    public void setStompConnectionListener(StompConnectionListener stompConnectionListener) {
+        this.stompConnectionListener = stompConnectionListener;
+    }
+
+    private static final class DeferredFrame {
+        private final ByteBuffer frame;
+        private final boolean binary;
+
+        private DeferredFrame(ByteBuffer frame, boolean binary) {
+            this.frame = frame;
+            this.binary = binary;
+        }
     }
 }
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import eu.mivrenik.stomp.StompCommand;
+import eu.mivrenik.stomp.StompFrame;
+import eu.mivrenik.stomp.StompFrameTooLargeException;
+import eu.mivrenik.stomp.StompHeader;
+import eu.mivrenik.stomp.StompHeaders;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate body compression, marked with a {@code content-encoding: deflate} header.
+ * <p>
+ * Deflaters and inflaters hold native memory and are expensive to create, so a few of them are pooled and reset
+ * between frames. Compressed bodies are always binary, so they have to be sent as binary WebSocket messages.
+ */
+final class StompCompressor {
+    static final String DEFLATE = "deflate";
+
+    /**
+     * Idle instances kept per pool. Busy threads beyond that create and discard their own.
+     */
+    private static final int MAX_POOLED = 8;
+
+    /**
+     * Output buffers grown above this size are dropped when their deflater returns to the pool.
+     */
+    private static final int MAX_RETAINED_BUFFER = 1 << 20;
+
+    /**
+     * Largest inflated body, as some VMs cannot allocate arrays of up to {@link Integer#MAX_VALUE} elements.
+     */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * Input chunk copied from a memory-mapped body at a time.
+     */
+    private static final int INFLATE_CHUNK = 64 * 1024;
+
+    private static final Pool<Inflater> INFLATERS = new Pool<Inflater>() {
+        @Override
+        Inflater create() {
+            return new Inflater();
+        }
+
+        @Override
+        void reset(Inflater inflater) {
+            inflater.reset();
+        }
+
+        @Override
+        void discard(Inflater inflater) {
+            inflater.end();
+        }
+    };
+
+    private final int minSize;
+    private final Pool<Deflating> deflaters;
+
+    /**
+     * @param minSize smallest body to compress, in bytes
+     * @param level   deflate level
+     */
+    StompCompressor(int minSize, final int level) {
+        this.minSize = minSize;
+        this.deflaters = new Pool<Deflating>() {
+            @Override
+            Deflating create() {
+                return new Deflating(level);
+            }
+
+            @Override
+            void reset(Deflating deflating) {
+                deflating.deflater.reset();
+                if (deflating.buffer.length > MAX_RETAINED_BUFFER) {
+                    deflating.buffer = new byte[0];
+                }
+            }
+
+            @Override
+            void discard(Deflating deflating) {
+                deflating.deflater.end();
+            }
+        };
+    }
+
+    int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * Compress a body into a pooled scratch buffer. The result must be given back with {@link #release(Deflating)}
+     * once it has been copied.
+     *
+     * @param body body bytes, at least {@link #getMinSize()} long
+     * @return compressed body or {@code null} if compression would not make the body smaller
+     */
+    Deflating deflate(byte[] body) {
+        Deflating deflating = deflaters.acquire();
+        Deflater deflater = deflating.deflater;
+        byte[] out = deflating.buffer;
+        if (out.length < body.length) {
+            out = new byte[body.length];
+            deflating.buffer = out;
+        }
+        deflater.setInput(body);
+        deflater.finish();
+        int length = 0;
+        // Give up as soon as the output is as large as the input
+        while (!deflater.finished() && length < body.length) {
+            length += deflater.deflate(out, length, body.length - length);
+        }
+        if (!deflater.finished()) {
+            deflaters.release(deflating);
+            return null;
+        }
+        deflating.length = length;
+        return deflating;
+    }
+
+    void release(Deflating deflating) {
+        deflaters.release(deflating);
+    }
+
+    /**
+     * Decompress a MESSAGE frame carrying a deflated body.
+     * <p>
+     * A memory-mapped body is fed to the inflater in chunks rather than copied onto the heap. Inflating stops as soon
+     * as the output exceeds {@code maxSize}, so a small body cannot expand to an arbitrary allocation.
+     *
+     * @param frame   MESSAGE frame
+     * @param maxSize maximum size of the inflated body in bytes
+     * @return frame with the original body, or the frame itself if its body is not deflated
+     * @throws StompFrameTooLargeException if the inflated body exceeds {@code maxSize}
+     * @throws IllegalArgumentException    if the body is not valid deflate data
+     */
+    static StompFrame inflate(StompFrame frame, int maxSize) {
+        if (!DEFLATE.equals(frame.getHeader(StompHeader.CONTENT_ENCODING))) {
+            return frame;
+        }
+        ByteBuffer mapped = frame.isBodyMapped() ? frame.getBodyBuffer() : null;
+        byte[] body = mapped != null ? null : frame.getBodyBytes();
+        if (mapped == null && body == null) {
+            throw new IllegalArgumentException("Deflate encoded STOMP frame without body");
+        }
+
+        Inflater inflater = INFLATERS.acquire();
+        int inputLength = mapped != null ? mapped.remaining() : body.length;
+        // One byte beyond the maximum tells an oversized body apart, within the largest array the VM allocates
+        int outputLimit = (int) Math.min(maxSize + 1L, MAX_ARRAY_SIZE);
+        byte[] out = new byte[(int) Math.min(Math.max(64L, inputLength * 4L), outputLimit)];
+        byte[] chunk = mapped != null ? new byte[Math.min(mapped.remaining(), INFLATE_CHUNK)] : null;
+        int length = 0;
+        try {
+            if (mapped == null) {
+                inflater.setInput(body);
+            }
+            while (!inflater.finished()) {
+                if (inflater.needsInput() && mapped != null && mapped.hasRemaining()) {
+                    int n = Math.min(chunk.length, mapped.remaining());
+                    mapped.get(chunk, 0, n);
+                    inflater.setInput(chunk, 0, n);
+                }
+                if (length == out.length) {
+                    if (length == outputLimit) {
+                        throw new StompFrameTooLargeException(length, Math.min(maxSize, MAX_ARRAY_SIZE));
+                    }
+                    out = Arrays.copyOf(out, (int) Math.min(out.length * 2L, outputLimit));
+                }
+                int n = inflater.inflate(out, length, out.length - length);
+                if (n == 0 && inflater.needsDictionary()
+                        || n == 0 && inflater.needsInput() && (mapped == null || !mapped.hasRemaining())) {
+                    throw new IllegalArgumentException("Truncated deflate body in STOMP frame");
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Invalid deflate body in STOMP frame", e);
+        } finally {
+            INFLATERS.release(inflater);
+        }
+        if (length > maxSize) {
+            throw new StompFrameTooLargeException(length, maxSize);
+        }
+
+        StompFrame inflated = new StompFrame(StompCommand.MESSAGE, frame.getHeaders(),
+                length == out.length ? out : Arrays.copyOf(out, length));
+        StompHeaders headers = inflated.getHeaders();
+        headers.remove(StompHeader.CONTENT_ENCODING);
+        headers.remove(StompHeader.CONTENT_LENGTH);
+        return inflated;
+    }
+
+    /**
+     * Pooled deflater with its output buffer.
+     */
+    static final class Deflating {
+        private final Deflater deflater;
+        byte[] buffer = new byte[0];
+        int length;
+
+        private Deflating(int level) {
+            this.deflater = new Deflater(level);
+        }
+    }
+
+    /**
+     * Bounded lock-free pool.
+     */
+    private abstract static class Pool<T> {
+        private final Queue<T> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        abstract T create();
+
+        abstract void reset(T instance);
+
+        abstract void discard(T instance);
+
+        T acquire() {
+            T instance = idle.poll();
+            if (instance == null) {
+                return create();
+            }
+            size.decrementAndGet();
+            return instance;
+        }
+
+        void release(T instance) {
+            reset(instance);
+            if (size.incrementAndGet() > MAX_POOLED) {
+                size.decrementAndGet();
+                discard(instance);
+                return;
+            }
+            idle.offer(instance);
+        }
+    }
+}
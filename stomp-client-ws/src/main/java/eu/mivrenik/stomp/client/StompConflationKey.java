@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import eu.mivrenik.stomp.StompFrame;
+import eu.mivrenik.stomp.StompHeader;
+
+/**
+ * Conflation key of a conflating subscription. Messages with the same key replace each other while waiting for the
+ * listener.
+ */
+public abstract class StompConflationKey {
+
+    /**
+     * Get the key of a message.
+     *
+     * @param stompFrame MESSAGE frame
+     * @return key or {@code null} to never conflate the message
+     */
+    public abstract Object keyOf(StompFrame stompFrame);
+
+    /**
+     * Key messages by a header value.
+     *
+     * @param name header name
+     * @return conflation key
+     */
+    public static StompConflationKey header(final String name) {
+        return new StompConflationKey() {
+            @Override
+            public Object keyOf(StompFrame stompFrame) {
+                return stompFrame.getHeader(name);
+            }
+        };
+    }
+
+    /**
+     * Key messages by destination, e.g. for wildcard subscriptions where the destination suffix identifies the
+     * value.
+     *
+     * @return conflation key
+     */
+    public static StompConflationKey destination() {
+        return new StompConflationKey() {
+            @Override
+            public Object keyOf(StompFrame stompFrame) {
+                return stompFrame.getHeader(StompHeader.DESTINATION);
+            }
+        };
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registered message converters with cached lookups.
+ * <p>
+ * Readers are cached per target type and content type, writers per object type. Registering a converter clears the
+ * caches, since it may take precedence over cached choices.
+ */
+class StompConverterRegistry {
+    /**
+     * Cache key of messages without {@code content-type}.
+     */
+    private static final String NO_CONTENT_TYPE = "";
+
+    /**
+     * Number of built-in converters, always consulted last.
+     */
+    private static final int BUILT_IN = 2;
+
+    private final List<StompMessageConverter> converters = new CopyOnWriteArrayList<>();
+    private final ConcurrentMap<Class<?>, ConcurrentMap<String, StompMessageConverter>> readers =
+            new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<?>, StompMessageConverter> writers = new ConcurrentHashMap<>();
+
+    StompConverterRegistry() {
+        converters.add(StompMessageConverter.text());
+        converters.add(StompMessageConverter.bytes());
+    }
+
+    /**
+     * Register a converter, taking precedence over the built-in ones but not over converters registered before.
+     *
+     * @param converter converter
+     */
+    synchronized void add(StompMessageConverter converter) {
+        converters.add(converters.size() - BUILT_IN, converter);
+        for (ConcurrentMap<String, StompMessageConverter> cache : readers.values()) {
+            cache.clear();
+        }
+        writers.clear();
+    }
+
+    /**
+     * Get the reader cache of a target type, to be passed to {@link #reader(ConcurrentMap, Class, String)}.
+     *
+     * @param type target type
+     * @return readers by content type
+     */
+    ConcurrentMap<String, StompMessageConverter> readers(Class<?> type) {
+        ConcurrentMap<String, StompMessageConverter> cache = readers.get(type);
+        if (cache == null) {
+            cache = new ConcurrentHashMap<>();
+            ConcurrentMap<String, StompMessageConverter> existing = readers.putIfAbsent(type, cache);
+            if (existing != null) {
+                cache = existing;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Find the converter reading a content type as a target type.
+     *
+     * @param cache       reader cache of the target type
+     * @param type        target type
+     * @param contentType {@code content-type} header value, {@code null} if absent
+     * @return converter
+     * @throws IllegalArgumentException if no converter can read the content type
+     */
+    StompMessageConverter reader(ConcurrentMap<String, StompMessageConverter> cache, Class<?> type,
+                                 String contentType) {
+        String key = contentType != null ? contentType : NO_CONTENT_TYPE;
+        StompMessageConverter converter = cache.get(key);
+        if (converter != null) {
+            return converter;
+        }
+        for (StompMessageConverter candidate : converters) {
+            if (candidate.canRead(contentType, type)) {
+                cache.put(key, candidate);
+                return candidate;
+            }
+        }
+        throw new IllegalArgumentException("No STOMP message converter reads " + contentType + " as " + type.getName());
+    }
+
+    /**
+     * Find the converter writing objects of a type.
+     *
+     * @param type object type
+     * @return converter
+     * @throws IllegalArgumentException if no converter can write the type
+     */
+    StompMessageConverter writer(Class<?> type) {
+        StompMessageConverter converter = writers.get(type);
+        if (converter != null) {
+            return converter;
+        }
+        for (StompMessageConverter candidate : converters) {
+            if (candidate.canWrite(type)) {
+                writers.put(type, candidate);
+                return candidate;
+            }
+        }
+        throw new IllegalArgumentException("No STOMP message converter writes " + type.getName());
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import eu.mivrenik.stomp.StompFrame;
+import eu.mivrenik.stomp.StompHeader;
+import eu.mivrenik.stomp.client.listener.StompMessageListener;
+import eu.mivrenik.stomp.client.listener.StompTypedListener;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Adapts a typed listener to a subscription, converting every message body from its bytes.
+ *
+ * @param <T> message type
+ */
+class StompConvertingListener<T> implements StompMessageListener {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final StompConverterRegistry registry;
+    private final ConcurrentMap<String, StompMessageConverter> readers;
+    private final Class<T> type;
+    private final StompTypedListener<? super T> listener;
+
+    StompConvertingListener(StompConverterRegistry registry, Class<T> type, StompTypedListener<? super T> listener) {
+        this.registry = registry;
+        this.readers = registry.readers(type);
+        this.type = type;
+        this.listener = listener;
+    }
+
+    @Override
+    public void onMessage(StompFrame stompFrame) {
+        StompMessageConverter converter = registry.reader(readers, type,
+                stompFrame.getHeader(StompHeader.CONTENT_TYPE));
+        byte[] body = stompFrame.getBodyBytes();
+        listener.onMessage(converter.read(body != null ? body : EMPTY, type), stompFrame);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import eu.mivrenik.stomp.StompFrame;
+import eu.mivrenik.stomp.client.listener.StompMessageListener;
+
+/**
+ * Listener of a multiplexed broker subscription, passing every message on to the local subscriptions sharing it.
+ * <p>
+ * Local subscriptions are kept in a copy-on-write array: delivery reads it without locking, while adding and removing
+ * are rare and serialised by the client.
+ */
+class StompFanOut implements StompMessageListener {
+    private static final StompSubscription[] EMPTY = new StompSubscription[0];
+
+    private final StompClient client;
+    private volatile StompSubscription[] members = EMPTY;
+
+    StompFanOut(StompClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public void onMessage(StompFrame stompFrame) {
+        for (StompSubscription member : members) {
+            try {
+                member.getListener().onMessage(stompFrame);
+            } catch (RuntimeException e) {
+                // One failing listener must not starve the others
+                client.onError(e);
+            }
+        }
+    }
+
+    void add(StompSubscription member) {
+        StompSubscription[] current = members;
+        StompSubscription[] updated = new StompSubscription[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = member;
+        members = updated;
+    }
+
+    /**
+     * Remove a local subscription.
+     *
+     * @param member local subscription
+     * @return {@code true} if it was the last one
+     */
+    boolean remove(StompSubscription member) {
+        StompSubscription[] current = members;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == member) {
+                StompSubscription[] updated = new StompSubscription[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                members = updated;
+                return updated.length == 0;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of an asynchronous STOMP operation, completed by the client.
+ *
+ * @param <V> result type
+ */
+public class StompFuture<V> implements Future<V> {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean completed;
+    private volatile boolean cancelled;
+    private volatile V value;
+    private volatile Throwable failure;
+    private List<Runnable> listeners;
+
+    /**
+     * Create an already successful future.
+     *
+     * @param value result
+     * @param <V>   result type
+     * @return completed future
+     */
+    public static <V> StompFuture<V> completed(V value) {
+        StompFuture<V> future = new StompFuture<>();
+        future.complete(value);
+        return future;
+    }
+
+    /**
+     * Create an already failed future.
+     *
+     * @param failure cause
+     * @param <V>     result type
+     * @return failed future
+     */
+    public static <V> StompFuture<V> failed(Throwable failure) {
+        StompFuture<V> future = new StompFuture<>();
+        future.fail(failure);
+        return future;
+    }
+
+    /**
+     * Complete the future successfully.
+     *
+     * @param value result
+     * @return {@code false} if the future was already done
+     */
+    public boolean complete(V value) {
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            this.value = value;
+            completed = true;
+        }
+        finish();
+        return true;
+    }
+
+    /**
+     * Complete the future with a failure.
+     *
+     * @param failure cause
+     * @return {@code false} if the future was already done
+     */
+    public boolean fail(Throwable failure) {
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            this.failure = failure;
+            completed = true;
+        }
+        finish();
+        return true;
+    }
+
+    /**
+     * Run a listener once the future is done, or immediately if it already is. Listeners run on the thread that
+     * completes the future and must not block.
+     *
+     * @param listener listener
+     */
+    public void addListener(Runnable listener) {
+        synchronized (this) {
+            if (!completed) {
+                if (listeners == null) {
+                    listeners = new ArrayList<>(1);
+                }
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Cancelling only marks the future as done; an operation that has already been handed to the WebSocket cannot
+     * be taken back.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            cancelled = true;
+            completed = true;
+        }
+        finish();
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return completed;
+    }
+
+    /**
+     * Get the failure cause.
+     *
+     * @return cause or {@code null} if the future is not done or has succeeded
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private V result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return value;
+    }
+
+    private void finish() {
+        done.countDown();
+        List<Runnable> toRun;
+        synchronized (this) {
+            toRun = listeners;
+            listeners = null;
+        }
+        if (toRun != null) {
+            for (Runnable listener : toRun) {
+                listener.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Negotiated STOMP heart-beating of a single connection, driven by the shared {@link StompTimerWheel}.
+ * <p>
+ * An EOL is only written when nothing else has been written for the outgoing interval. The connection is
+ * considered dead when nothing has been read for the incoming interval times {@link #INCOMING_TOLERANCE}.
+ */
+class StompHeartbeat implements Runnable {
+    /**
+     * Error margin applied to the incoming interval, as suggested by the STOMP specification.
+     */
+    static final int INCOMING_TOLERANCE = 2;
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(StompTimerWheel.TICK_MILLIS);
+
+    private final StompClient client;
+    private final long outgoingNanos;
+    private final long incomingNanos;
+
+    volatile long lastReadNanos;
+    volatile long lastWriteNanos;
+
+    private volatile boolean stopped;
+    private volatile StompTimerWheel.Timeout timeout;
+
+    /**
+     * @param client           client
+     * @param outgoingInterval minimum interval of outgoing data in milliseconds, 0 for none
+     * @param incomingInterval expected interval of incoming data in milliseconds, 0 for none
+     */
+    StompHeartbeat(StompClient client, long outgoingInterval, long incomingInterval) {
+        this.client = client;
+        this.outgoingNanos = TimeUnit.MILLISECONDS.toNanos(outgoingInterval);
+        this.incomingNanos = TimeUnit.MILLISECONDS.toNanos(incomingInterval) * INCOMING_TOLERANCE;
+        long now = System.nanoTime();
+        this.lastReadNanos = now;
+        this.lastWriteNanos = now;
+    }
+
+    /**
+     * Parse a heart-beat header value.
+     *
+     * @param value header value {@code <x>,<y>}, may be {@code null}
+     * @return both intervals in milliseconds, zeros if the header is missing or malformed
+     */
+    static long[] parse(String value) {
+        long[] intervals = new long[2];
+        if (value == null) {
+            return intervals;
+        }
+        int comma = value.indexOf(',');
+        if (comma < 0) {
+            return intervals;
+        }
+        try {
+            intervals[0] = Long.parseLong(value.substring(0, comma).trim());
+            intervals[1] = Long.parseLong(value.substring(comma + 1).trim());
+        } catch (NumberFormatException e) {
+            intervals[0] = 0;
+            intervals[1] = 0;
+        }
+        return intervals;
+    }
+
+    boolean isActive() {
+        return outgoingNanos > 0 || incomingNanos > 0;
+    }
+
+    void start() {
+        if (isActive()) {
+            schedule(Math.min(outgoingNanos > 0 ? outgoingNanos : Long.MAX_VALUE,
+                    incomingNanos > 0 ? incomingNanos : Long.MAX_VALUE));
+        }
+    }
+
+    void stop() {
+        stopped = true;
+        StompTimerWheel.Timeout current = timeout;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    @Override
+    public void run() {
+        if (stopped) {
+            return;
+        }
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+
+        if (incomingNanos > 0) {
+            long silent = now - lastReadNanos;
+            if (silent >= incomingNanos) {
+                stopped = true;
+                client.heartbeatTimedOut();
+                return;
+            }
+            next = incomingNanos - silent;
+        }
+
+        if (outgoingNanos > 0) {
+            long idle = now - lastWriteNanos;
+            // The wheel fires up to a tick late, so check and ping a tick early
+            if (idle >= outgoingNanos - TICK_NANOS) {
+                client.sendHeartbeat();
+                idle = 0;
+            }
+            next = Math.min(next, outgoingNanos - TICK_NANOS - idle);
+        }
+
+        schedule(next);
+    }
+
+    private void schedule(long delayNanos) {
+        timeout = StompTimerWheel.get().schedule(client, this, Math.max(delayNanos, TICK_NANOS), TimeUnit.NANOSECONDS);
+        if (stopped) {
+            timeout.cancel();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Bounded buffer holding outbound frames while a reconnecting client is offline.
+ * <p>
+ * Frames are only held while the buffer is in holding mode. Releasing re-subscribes, then writes the held frames in
+ * order before any frame submitted afterwards. Subscriptions made while holding are registered under the buffer's
+ * lock, so that each is either replayed or subscribed normally, never both.
+ */
+class StompHoldingBuffer {
+    private final StompClient client;
+    private final int maxBytes;
+
+    /**
+     * Held frames and their total size, guarded by {@code this}.
+     */
+    private final Queue<HeldFrame> frames = new ArrayDeque<>();
+    private int bytes;
+
+    private volatile boolean holding;
+
+    StompHoldingBuffer(StompClient client, int maxBytes) {
+        this.client = client;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Start holding frames, e.g. when the connection has been lost.
+     */
+    synchronized void hold() {
+        holding = true;
+    }
+
+    boolean isHolding() {
+        return holding;
+    }
+
+    /**
+     * Hold a frame if the client is offline. The frame is copied, so the buffer may be reused once this returns.
+     *
+     * @param frame  encoded frame
+     * @param binary whether the frame must be sent as a binary message
+     * @return future completed once the held frame has been written, or {@code null} if the frame should be written
+     * right away
+     * @throws IllegalStateException if the buffer is full
+     */
+    StompFuture<Void> offer(ByteBuffer frame, boolean binary) {
+        if (!holding) {
+            return null;
+        }
+        synchronized (this) {
+            if (!holding) {
+                return null;
+            }
+            int size = frame.remaining();
+            if (bytes + size > maxBytes) {
+                throw new IllegalStateException("STOMP outbound buffer is full");
+            }
+            byte[] data = new byte[size];
+            frame.get(data);
+            HeldFrame held = new HeldFrame(data, binary);
+            frames.offer(held);
+            bytes += size;
+            return held.future;
+        }
+    }
+
+    /**
+     * Replay subscriptions, write all held frames and stop holding.
+     */
+    synchronized void release() {
+        try {
+            client.replaySubscriptions();
+        } catch (RuntimeException e) {
+            // Lost the connection again, keep holding until the next one
+            client.onError(e);
+            return;
+        }
+        HeldFrame held;
+        while ((held = frames.poll()) != null) {
+            bytes -= held.data.length;
+            try {
+                final StompFuture<Void> future = held.future;
+                final StompFuture<Void> written = client.submitFrame(ByteBuffer.wrap(held.data), held.binary);
+                written.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (written.getFailure() != null) {
+                            future.fail(written.getFailure());
+                        } else {
+                            future.complete(null);
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                held.future.fail(e);
+            }
+        }
+        holding = false;
+    }
+
+    /**
+     * Fail all held frames and stop holding.
+     *
+     * @param cause failure cause
+     */
+    synchronized void failAll(Throwable cause) {
+        HeldFrame held;
+        while ((held = frames.poll()) != null) {
+            held.future.fail(cause);
+        }
+        bytes = 0;
+        holding = false;
+    }
+
+    private static final class HeldFrame {
+        final byte[] data;
+        final boolean binary;
+        final StompFuture<Void> future = new StompFuture<>();
+
+        HeldFrame(byte[] data, boolean binary) {
+            this.data = data;
+            this.binary = binary;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import java.nio.charset.Charset;
+
+/**
+ * Converts message bodies from and to objects, e.g. with a JSON library.
+ * <p>
+ * Converters read straight from the body bytes of a frame, so no intermediate String is created. The client caches
+ * the converter chosen per content type and target type, so {@link #canRead(String, Class)} and
+ * {@link #canWrite(Class)} are only consulted for the first message of each combination. Converters must be
+ * thread-safe.
+ *
+ * @see StompClient#addMessageConverter(StompMessageConverter)
+ */
+public abstract class StompMessageConverter {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Get the content type written into the {@code content-type} header of sent messages.
+     *
+     * @return MIME type, {@code null} to write no header
+     */
+    public abstract String getContentType();
+
+    /**
+     * Check whether bodies of a content type can be read as a given type.
+     * <p>
+     * The default implementation accepts the converter's own MIME type, ignoring parameters such as the charset, and
+     * messages without content type, if {@link #canWrite(Class)} accepts the type.
+     *
+     * @param contentType {@code content-type} header value, {@code null} if absent
+     * @param type        target type
+     * @return {@code true} if {@link #read(byte[], Class)} can convert the body
+     */
+    public boolean canRead(String contentType, Class<?> type) {
+        return canWrite(type) && (contentType == null || mediaTypeEquals(contentType, getContentType()));
+    }
+
+    /**
+     * Check whether objects of a type can be written.
+     *
+     * @param type object type
+     * @return {@code true} if {@link #write(Object)} can convert the object
+     */
+    public abstract boolean canWrite(Class<?> type);
+
+    /**
+     * Convert a message body.
+     *
+     * @param body body bytes, empty if the message has no body; shared with the frame and must not be modified
+     * @param type target type
+     * @param <T>  target type
+     * @return converted body
+     */
+    public abstract <T> T read(byte[] body, Class<T> type);
+
+    /**
+     * Convert an object to a message body.
+     *
+     * @param value object
+     * @return body bytes
+     */
+    public abstract byte[] write(Object value);
+
+    /**
+     * Converter of {@code text/plain} UTF-8 bodies to and from {@link String}.
+     *
+     * @return converter
+     */
+    public static StompMessageConverter text() {
+        return new StompMessageConverter() {
+            @Override
+            public String getContentType() {
+                return "text/plain";
+            }
+
+            @Override
+            public boolean canWrite(Class<?> type) {
+                return type == String.class;
+            }
+
+            @Override
+            public <T> T read(byte[] body, Class<T> type) {
+                return type.cast(new String(body, UTF_8));
+            }
+
+            @Override
+            public byte[] write(Object value) {
+                return ((String) value).getBytes(UTF_8);
+            }
+        };
+    }
+
+    /**
+     * Converter passing {@code application/octet-stream} bodies through as {@code byte[]}.
+     *
+     * @return converter
+     */
+    public static StompMessageConverter bytes() {
+        return new StompMessageConverter() {
+            @Override
+            public String getContentType() {
+                return "application/octet-stream";
+            }
+
+            @Override
+            public boolean canRead(String contentType, Class<?> type) {
+                // Any content can be read as raw bytes
+                return type == byte[].class;
+            }
+
+            @Override
+            public boolean canWrite(Class<?> type) {
+                return type == byte[].class;
+            }
+
+            @Override
+            public <T> T read(byte[] body, Class<T> type) {
+                return type.cast(body);
+            }
+
+            @Override
+            public byte[] write(Object value) {
+                return (byte[]) value;
+            }
+        };
+    }
+
+    /**
+     * Compare the MIME types of two content types, ignoring parameters and case.
+     */
+    static boolean mediaTypeEquals(String contentType, String mediaType) {
+        if (mediaType == null) {
+            return false;
+        }
+        int end = contentType.indexOf(';');
+        if (end < 0) {
+            end = contentType.length();
+        }
+        while (end > 0 && contentType.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return end == mediaType.length() && contentType.regionMatches(true, 0, mediaType, 0, end);
+    }
+}
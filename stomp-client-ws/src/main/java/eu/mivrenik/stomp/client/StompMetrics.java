@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import eu.mivrenik.stomp.StompFrame;
+
+/**
+ * Client instrumentation SPI.
+ * <p>
+ * Callbacks run on the thread doing the measured work, mostly the WebSocket read thread and the dispatch executor,
+ * so implementations must be thread-safe and return quickly. Durations are in nanoseconds. The client skips timing
+ * altogether while {@link #NONE} is installed, see {@link StompClient#setMetrics(StompMetrics)}.
+ *
+ * @see StompMetricsCollector
+ */
+public abstract class StompMetrics {
+    /**
+     * Metrics that record nothing. The default.
+     */
+    public static final StompMetrics NONE = new StompMetrics() {
+    };
+
+    /**
+     * A WebSocket message has been decoded.
+     *
+     * @param size   message size, in characters for text messages
+     * @param frames number of frames completed by the message
+     * @param nanos  decode time
+     */
+    public void onDecoded(int size, int frames, long nanos) {
+    }
+
+    /**
+     * A MESSAGE frame has been handed to its subscription.
+     * <p>
+     * Dispatch time is spent on the read thread and includes waiting for queue space with
+     * {@link StompOverflowPolicy#BLOCK}. Without a dispatch executor it includes the listener as well.
+     *
+     * @param subscription subscription
+     * @param stompFrame   MESSAGE frame
+     * @param nanos        dispatch time
+     */
+    public void onMessageReceived(StompSubscription subscription, StompFrame stompFrame, long nanos) {
+    }
+
+    /**
+     * A subscription's listener has returned.
+     *
+     * @param subscription subscription
+     * @param nanos        listener time
+     * @param success      {@code false} if the listener threw
+     */
+    public void onListenerCompleted(StompSubscription subscription, long nanos, boolean success) {
+    }
+
+    /**
+     * A SEND frame has been submitted.
+     *
+     * @param destination destination
+     * @param size        encoded frame size in bytes
+     */
+    public void onMessageSent(String destination, int size) {
+    }
+
+    /**
+     * A RECEIPT frame has arrived.
+     *
+     * @param nanos time since the receipt was requested
+     */
+    public void onReceipt(long nanos) {
+    }
+
+    /**
+     * A subscription has been removed.
+     *
+     * @param subscription subscription
+     */
+    public void onSubscriptionRemoved(StompSubscription subscription) {
+    }
+
+    /**
+     * The client has reported an error, see {@link StompClient#onError(Exception)}.
+     *
+     * @param ex error
+     */
+    public void onError(Exception ex) {
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import eu.mivrenik.stomp.StompFrame;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free {@link StompMetrics} implementation.
+ * <p>
+ * Keeps message and byte counters per destination and per subscription, and histograms of decode, dispatch, listener
+ * and receipt round trip times. One collector may be shared by several clients.
+ */
+public class StompMetricsCollector extends StompMetrics {
+    private final ConcurrentMap<String, Counters> destinations = new ConcurrentHashMap<>();
+
+    /**
+     * Counters by subscription instance, since ids are only unique within a client.
+     */
+    private final ConcurrentMap<StompSubscription, Counters> subscriptions = new ConcurrentHashMap<>();
+
+    private final StompHistogram decodeTime = new StompHistogram();
+    private final StompHistogram dispatchTime = new StompHistogram();
+    private final StompHistogram listenerTime = new StompHistogram();
+    private final StompHistogram receiptTime = new StompHistogram();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    @Override
+    public void onDecoded(int size, int frames, long nanos) {
+        bytesReceived.addAndGet(size);
+        decodeTime.record(nanos);
+    }
+
+    @Override
+    public void onMessageReceived(StompSubscription subscription, StompFrame stompFrame, long nanos) {
+        int size = stompFrame.getBodyLength();
+        counters(destinations, subscription.getDestination()).received(size);
+        counters(subscriptions, subscription).received(size);
+        dispatchTime.record(nanos);
+    }
+
+    @Override
+    public void onListenerCompleted(StompSubscription subscription, long nanos, boolean success) {
+        if (!success) {
+            counters(subscriptions, subscription).listenerFailures.incrementAndGet();
+        }
+        listenerTime.record(nanos);
+    }
+
+    @Override
+    public void onMessageSent(String destination, int size) {
+        Counters counters = counters(destinations, destination);
+        counters.messagesSent.incrementAndGet();
+        counters.bytesSent.addAndGet(size);
+    }
+
+    @Override
+    public void onReceipt(long nanos) {
+        receiptTime.record(nanos);
+    }
+
+    @Override
+    public void onSubscriptionRemoved(StompSubscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    @Override
+    public void onError(Exception ex) {
+        errors.incrementAndGet();
+    }
+
+    /**
+     * Get counters of a destination.
+     *
+     * @param destination destination
+     * @return counters or {@code null} if nothing has been sent to or received from the destination
+     */
+    public Counters getDestination(String destination) {
+        return destinations.get(destination);
+    }
+
+    /**
+     * Get counters of all destinations.
+     *
+     * @return live view of counters by destination
+     */
+    public Map<String, Counters> getDestinations() {
+        return Collections.unmodifiableMap(destinations);
+    }
+
+    /**
+     * Get counters of an active subscription. Sent messages are only counted per destination.
+     *
+     * @param subscription subscription
+     * @return counters or {@code null} if the subscription has not received anything
+     */
+    public Counters getSubscription(StompSubscription subscription) {
+        return subscriptions.get(subscription);
+    }
+
+    /**
+     * Get the WebSocket message decode time histogram.
+     *
+     * @return histogram in nanoseconds
+     */
+    public StompHistogram getDecodeTime() {
+        return decodeTime;
+    }
+
+    /**
+     * Get the MESSAGE dispatch time histogram.
+     *
+     * @return histogram in nanoseconds
+     * @see StompMetrics#onMessageReceived(StompSubscription, StompFrame, long)
+     */
+    public StompHistogram getDispatchTime() {
+        return dispatchTime;
+    }
+
+    /**
+     * Get the listener time histogram.
+     *
+     * @return histogram in nanoseconds
+     */
+    public StompHistogram getListenerTime() {
+        return listenerTime;
+    }
+
+    /**
+     * Get the receipt round trip time histogram.
+     *
+     * @return histogram in nanoseconds
+     */
+    public StompHistogram getReceiptTime() {
+        return receiptTime;
+    }
+
+    /**
+     * Get the total size of received WebSocket messages.
+     *
+     * @return bytes, characters for text messages
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Get the number of reported errors.
+     *
+     * @return error count
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    private static <K> Counters counters(ConcurrentMap<K, Counters> map, K key) {
+        Counters counters = map.get(key);
+        if (counters == null) {
+            counters = new Counters();
+            Counters existing = map.putIfAbsent(key, counters);
+            if (existing != null) {
+                counters = existing;
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * Message counters of a destination or subscription.
+     */
+    public static final class Counters {
+        private final AtomicLong messagesReceived = new AtomicLong();
+        private final AtomicLong bytesReceived = new AtomicLong();
+        private final AtomicLong messagesSent = new AtomicLong();
+        private final AtomicLong bytesSent = new AtomicLong();
+        private final AtomicLong listenerFailures = new AtomicLong();
+
+        private Counters() {
+        }
+
+        private void received(int size) {
+            messagesReceived.incrementAndGet();
+            bytesReceived.addAndGet(size);
+        }
+
+        public long getMessagesReceived() {
+            return messagesReceived.get();
+        }
+
+        /**
+         * @return received body bytes
+         */
+        public long getBytesReceived() {
+            return bytesReceived.get();
+        }
+
+        public long getMessagesSent() {
+            return messagesSent.get();
+        }
+
+        /**
+         * @return sent bytes, including the frame headers
+         */
+        public long getBytesSent() {
+            return bytesSent.get();
+        }
+
+        /**
+         * @return number of messages whose listener threw, per subscription only
+         */
+        public long getListenerFailures() {
+            return listenerFailures.get();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+/**
+ * What to do when a subscription's inbound message queue is full.
+ * <p>
+ * Dropped messages of {@link StompAckMode#CLIENT_INDIVIDUAL} subscriptions are given back to the broker with NACK.
+ * With {@link StompAckMode#CLIENT} no NACK is sent, since it would also reject all earlier messages still queued or
+ * being processed. A dropped message is then covered by the next cumulative ACK and lost, as with
+ * {@link StompAckMode#AUTO}, unless the connection ends before that ACK and the broker redelivers it.
+ */
+public enum StompOverflowPolicy {
+    /**
+     * Block the WebSocket read thread until the listener catches up. Nothing is lost, but all subscriptions of the
+     * connection stall and the broker eventually sees TCP backpressure.
+     */
+    BLOCK,
+
+    /**
+     * Drop the oldest queued message to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Drop the new message.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Drop all queued messages and remove the subscription.
+     */
+    FAIL
+}
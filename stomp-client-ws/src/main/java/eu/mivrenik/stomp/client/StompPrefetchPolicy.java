@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses the prefetch window requested when subscribing with client acknowledgement.
+ * <p>
+ * The policy tracks the average listener latency and the local queue depth of every destination. The prefetch is
+ * sized so that the broker keeps about {@code targetBacklog} worth of messages in flight, and it is reduced by the
+ * number of messages queued locally beyond that, since those only hold memory while the listener catches up.
+ * <p>
+ * STOMP cannot change the window of an active subscription, so the adapted value applies to the next SUBSCRIBE of the
+ * destination, e.g. a re-subscription after reconnecting. Brokers name the header differently, see
+ * {@link #RABBITMQ_HEADER} and {@link #ACTIVEMQ_HEADER}.
+ */
+public class StompPrefetchPolicy {
+    /**
+     * RabbitMQ prefetch header.
+     */
+    public static final String RABBITMQ_HEADER = "prefetch-count";
+
+    /**
+     * ActiveMQ prefetch header.
+     */
+    public static final String ACTIVEMQ_HEADER = "activemq.prefetchSize";
+
+    /**
+     * Weight of a new latency sample in the moving average, as a shift: 1/8.
+     */
+    private static final int EWMA_SHIFT = 3;
+
+    private final String header;
+    private final int initialPrefetch;
+    private final int minPrefetch;
+    private final int maxPrefetch;
+    private final long targetBacklogNanos;
+    private final ConcurrentMap<String, Estimate> estimates = new ConcurrentHashMap<>();
+
+    /**
+     * @param header          prefetch header name
+     * @param initialPrefetch prefetch of destinations without latency samples yet
+     * @param minPrefetch     lower bound of the adapted prefetch
+     * @param maxPrefetch     upper bound of the adapted prefetch
+     * @param targetBacklog   processing time the broker should keep in flight per subscription
+     * @param unit            unit of {@code targetBacklog}
+     */
+    public StompPrefetchPolicy(String header, int initialPrefetch, int minPrefetch, int maxPrefetch,
+                               long targetBacklog, TimeUnit unit) {
+        if (minPrefetch <= 0 || maxPrefetch < minPrefetch) {
+            throw new IllegalArgumentException("Invalid prefetch bounds: " + minPrefetch + ".." + maxPrefetch);
+        }
+        if (initialPrefetch < minPrefetch || initialPrefetch > maxPrefetch) {
+            throw new IllegalArgumentException("Initial prefetch out of bounds: " + initialPrefetch);
+        }
+        this.header = header;
+        this.initialPrefetch = initialPrefetch;
+        this.minPrefetch = minPrefetch;
+        this.maxPrefetch = maxPrefetch;
+        this.targetBacklogNanos = unit.toNanos(targetBacklog);
+    }
+
+    public String getHeader() {
+        return header;
+    }
+
+    /**
+     * Get the prefetch to request for a destination.
+     *
+     * @param destination destination
+     * @return prefetch window
+     */
+    public int getPrefetch(String destination) {
+        Estimate estimate = estimates.get(destination);
+        return estimate != null ? estimate.prefetch : initialPrefetch;
+    }
+
+    /**
+     * Record a delivered message.
+     *
+     * @param destination  destination
+     * @param latencyNanos time the listener took
+     * @param queueDepth   messages still queued for the subscription
+     */
+    void record(String destination, long latencyNanos, int queueDepth) {
+        Estimate estimate = estimates.get(destination);
+        if (estimate == null) {
+            estimate = new Estimate(initialPrefetch);
+            Estimate existing = estimates.putIfAbsent(destination, estimate);
+            if (existing != null) {
+                estimate = existing;
+            }
+        }
+
+        // Racing updates from subscriptions sharing a destination only lose samples
+        long average = estimate.averageNanos;
+        average = average == 0 ? latencyNanos : average + ((latencyNanos - average) >> EWMA_SHIFT);
+        estimate.averageNanos = average;
+
+        long target = average > 0 ? targetBacklogNanos / average : maxPrefetch;
+        if (queueDepth > target) {
+            target -= queueDepth - target;
+        }
+        estimate.prefetch = (int) Math.max(minPrefetch, Math.min(maxPrefetch, target));
+    }
+
+    private static final class Estimate {
+        volatile long averageNanos;
+        volatile int prefetch;
+
+        Estimate(int prefetch) {
+            this.prefetch = prefetch;
+        }
+    }
+}
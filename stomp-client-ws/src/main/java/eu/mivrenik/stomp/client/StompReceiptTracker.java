@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import eu.mivrenik.stomp.StompFrame;
+import eu.mivrenik.stomp.StompHeader;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Correlates outstanding receipt requests with RECEIPT frames.
+ * <p>
+ * Pending receipts live in a concurrent map keyed by receipt id, so frames can be pipelined while the read thread
+ * completes them. The number of receipts in flight is bounded and each one times out on the shared scheduler.
+ */
+class StompReceiptTracker {
+    private final ConcurrentMap<String, PendingReceipt> pending = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Semaphore window;
+    private final int maxInFlight;
+    private final long timeoutNanos;
+
+    StompReceiptTracker(int maxInFlight, long timeout, TimeUnit unit) {
+        this.maxInFlight = maxInFlight;
+        this.window = new Semaphore(maxInFlight);
+        this.timeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * Reserve a receipt id for a frame about to be sent. Blocks while the maximum number of receipts is in flight,
+     * unless the caller must not wait.
+     *
+     * @param future future to complete with the RECEIPT frame
+     * @param wait   whether to wait for a free slot; the read thread completing receipts must not
+     * @return receipt id or {@code null} if the future has been failed because no slot became free in time
+     */
+    String register(StompFuture<StompFrame> future, boolean wait) {
+        try {
+            boolean acquired = wait ? window.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS) : window.tryAcquire();
+            if (!acquired) {
+                future.fail(new TimeoutException("Too many STOMP receipts in flight: " + maxInFlight));
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.fail(e);
+            return null;
+        }
+
+        final String id = Long.toString(sequence.incrementAndGet());
+        final PendingReceipt receipt = new PendingReceipt(future);
+        pending.put(id, receipt);
+        receipt.timeout = StompScheduler.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (pending.remove(id, receipt)) {
+                    window.release();
+                    receipt.future.fail(new TimeoutException("No STOMP receipt for " + id));
+                }
+            }
+        }, timeoutNanos, TimeUnit.NANOSECONDS);
+        return id;
+    }
+
+    /**
+     * Fail a receipt whose frame could not be sent.
+     *
+     * @param id    receipt id
+     * @param cause failure cause
+     */
+    void fail(String id, Throwable cause) {
+        PendingReceipt receipt = remove(id);
+        if (receipt != null) {
+            receipt.future.fail(cause);
+        }
+    }
+
+    /**
+     * Complete the receipt a RECEIPT frame refers to.
+     *
+     * @param frame RECEIPT frame
+     * @return nanoseconds since the receipt was registered, -1 if the receipt is unknown
+     */
+    long onReceipt(StompFrame frame) {
+        PendingReceipt receipt = remove(frame.getHeader(StompHeader.RECEIPT_ID));
+        if (receipt == null) {
+            return -1;
+        }
+        long roundTrip = System.nanoTime() - receipt.registeredNanos;
+        receipt.future.complete(frame);
+        return roundTrip;
+    }
+
+    /**
+     * Fail the receipt an ERROR frame refers to, if any.
+     *
+     * @param frame ERROR frame
+     */
+    void onError(StompFrame frame) {
+        PendingReceipt receipt = remove(frame.getHeader(StompHeader.RECEIPT_ID));
+        if (receipt != null) {
+            receipt.future.fail(new StompErrorException(frame));
+        }
+    }
+
+    /**
+     * Fail all outstanding receipts, e.g. when the connection has been closed.
+     *
+     * @param cause failure cause
+     */
+    void failAll(Throwable cause) {
+        for (String id : pending.keySet()) {
+            fail(id, cause);
+        }
+    }
+
+    /**
+     * Number of receipts in flight.
+     *
+     * @return outstanding receipt count
+     */
+    int getInFlight() {
+        return pending.size();
+    }
+
+    private PendingReceipt remove(String id) {
+        if (id == null) {
+            return null;
+        }
+        PendingReceipt receipt = pending.remove(id);
+        if (receipt != null) {
+            window.release();
+            ScheduledFuture<?> timeout = receipt.timeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+        }
+        return receipt;
+    }
+
+    private static final class PendingReceipt {
+        private final StompFuture<StompFrame> future;
+        private final long registeredNanos = System.nanoTime();
+        private volatile ScheduledFuture<?> timeout;
+
+        private PendingReceipt(StompFuture<StompFrame> future) {
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules reconnect attempts with exponential backoff and jitter.
+ * <p>
+ * The delay doubles with every failed attempt up to a maximum. Half of it is randomised so that many clients losing
+ * the same broker do not reconnect in lockstep.
+ */
+class StompReconnector implements Runnable {
+    private final StompClient client;
+    private final long initialDelayNanos;
+    private final long maxDelayNanos;
+
+    private volatile int attempts;
+    private volatile boolean stopped;
+    private volatile Future<?> pending;
+
+    StompReconnector(StompClient client, long initialDelay, long maxDelay, TimeUnit unit) {
+        this.client = client;
+        this.initialDelayNanos = unit.toNanos(initialDelay);
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+    }
+
+    /**
+     * Schedule the next attempt.
+     */
+    void schedule() {
+        if (stopped) {
+            return;
+        }
+        long delay = nextDelay(attempts++);
+        try {
+            pending = StompScheduler.get().schedule(this, delay, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            client.onError(e);
+        }
+    }
+
+    /**
+     * Reset the backoff after a successful connection.
+     */
+    void reset() {
+        attempts = 0;
+    }
+
+    void stop() {
+        stopped = true;
+        Future<?> current = pending;
+        if (current != null) {
+            current.cancel(false);
+        }
+    }
+
+    int getAttempts() {
+        return attempts;
+    }
+
+    @Override
+    public void run() {
+        if (stopped) {
+            return;
+        }
+        try {
+            // Must not run on the WebSocket threads, which reconnect() waits for
+            client.reconnect();
+        } catch (RuntimeException e) {
+            client.onError(e);
+            schedule();
+        }
+    }
+
+    private long nextDelay(int attempt) {
+        long delay = initialDelayNanos;
+        for (int i = 0; i < attempt && delay < maxDelayNanos; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelayNanos);
+        long half = delay / 2;
+        return half + (half > 0 ? ThreadLocalRandom.current().nextLong(half + 1) : 0);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Asynchronous outbound frame queue.
+ * <p>
+ * Producers append encoded frames to a lock-free queue. A single writer task at a time drains it on the shared
+ * scheduler and coalesces adjacent frames of the same kind (text or binary) into one WebSocket message, which STOMP
+ * permits since frames are NUL-terminated. The writer may wait up to a delay for more frames to arrive.
+ */
+class StompSendQueue implements Runnable {
+    /**
+     * Frames written per task before yielding the scheduler thread.
+     */
+    private static final int MAX_FRAMES_PER_RUN = 4096;
+
+    private final StompClient client;
+    private final int maxMessageSize;
+    private final long maxDelayNanos;
+
+    private final Queue<PendingFrame> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * Coalesced message and the futures of its frames. Only used by the writer.
+     */
+    private final ByteBuffer message;
+    private final List<StompFuture<Void>> batch = new ArrayList<>();
+    private boolean batchBinary;
+
+    StompSendQueue(StompClient client, int maxMessageSize, long maxDelay, TimeUnit unit) {
+        this.client = client;
+        this.maxMessageSize = maxMessageSize;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.message = ByteBuffer.allocate(maxMessageSize);
+    }
+
+    /**
+     * Queue an encoded frame. The frame is copied, so the buffer may be reused once this returns.
+     *
+     * @param frame  encoded frame
+     * @param binary whether the frame must be sent as a binary message
+     * @return future completed once the frame has been handed to the WebSocket
+     */
+    StompFuture<Void> submit(ByteBuffer frame, boolean binary) {
+        byte[] data = new byte[frame.remaining()];
+        frame.get(data);
+        StompFuture<Void> future = new StompFuture<>();
+        queue.offer(new PendingFrame(data, binary, future));
+        schedule();
+        return future;
+    }
+
+    /**
+     * Fail all queued frames, e.g. when the connection has been closed.
+     *
+     * @param cause failure cause
+     */
+    void failAll(Throwable cause) {
+        PendingFrame frame;
+        while ((frame = queue.poll()) != null) {
+            frame.future.fail(cause);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            PendingFrame frame;
+            for (int i = 0; i < MAX_FRAMES_PER_RUN && (frame = queue.poll()) != null; i++) {
+                if (frame.future.isCancelled()) {
+                    continue;
+                }
+                if (!batch.isEmpty()
+                        && (frame.binary != batchBinary || message.position() + frame.data.length > maxMessageSize)) {
+                    flush();
+                }
+                if (frame.data.length > maxMessageSize) {
+                    // Too large to coalesce, sent on its own
+                    write(ByteBuffer.wrap(frame.data), frame.binary, frame.future);
+                    continue;
+                }
+                message.put(frame.data);
+                batch.add(frame.future);
+                batchBinary = frame.binary;
+            }
+            if (!batch.isEmpty()) {
+                flush();
+            }
+        } finally {
+            scheduled.set(false);
+        }
+        if (!queue.isEmpty()) {
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        if (maxDelayNanos > 0) {
+            StompScheduler.get().schedule(this, maxDelayNanos, TimeUnit.NANOSECONDS);
+        } else {
+            StompScheduler.get().execute(this);
+        }
+    }
+
+    private void flush() {
+        message.flip();
+        try {
+            client.sendEncodedFrame(message, batchBinary);
+            for (StompFuture<Void> future : batch) {
+                future.complete(null);
+            }
+        } catch (RuntimeException e) {
+            for (StompFuture<Void> future : batch) {
+                future.fail(e);
+            }
+        } finally {
+            message.clear();
+            batch.clear();
+        }
+    }
+
+    private void write(ByteBuffer frame, boolean binary, StompFuture<Void> future) {
+        try {
+            client.sendEncodedFrame(frame, binary);
+            future.complete(null);
+        } catch (RuntimeException e) {
+            future.fail(e);
+        }
+    }
+
+    private static final class PendingFrame {
+        private final byte[] data;
+        private final boolean binary;
+        private final StompFuture<Void> future;
+
+        private PendingFrame(byte[] data, boolean binary, StompFuture<Void> future) {
+            this.data = data;
+            this.binary = binary;
+            this.future = future;
+        }
+    }
+}
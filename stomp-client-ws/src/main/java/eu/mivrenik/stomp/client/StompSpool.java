@@ -0,0 +1,442 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import eu.mivrenik.stomp.StompFrame;
+import eu.mivrenik.stomp.StompHeader;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Durable outbound journal of SEND frames, giving at-least-once publishing across disconnects and restarts.
+ * <p>
+ * Encoded frames are appended to memory-mapped segment files of a fixed size, each named after the sequence number of
+ * its first record. Record layout: length, CRC-32 of the frame, sequence number, binary flag and the frame. The length
+ * is written last, so a record torn by a crash fails the CRC or reads as the end of the journal. While connected,
+ * frames are written in order with a {@code receipt:spool-<sequence>} header. RECEIPTs advance the confirmed
+ * sequence number, kept in a mapped {@code spool.ack} file, and fully confirmed segments are deleted. On CONNECTED
+ * all unconfirmed frames are written again.
+ * <p>
+ * Mapped writes survive a crash of the process, not of the operating system. The directory is locked while the spool
+ * is open.
+ */
+final class StompSpool {
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String ACK_FILE = "spool.ack";
+    private static final String RECEIPT_PREFIX = "spool-";
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Record header: length, CRC-32, sequence number and binary flag.
+     */
+    private static final int RECORD_HEADER = 4 + 4 + 8 + 1;
+
+    /**
+     * Length of {@code SEND\n}, after which the receipt header is inserted.
+     */
+    private static final int COMMAND_LINE = 5;
+
+    private final StompClient client;
+    private final File directory;
+    private final int segmentSize;
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Keeps the directory locked while the spool is open.
+     */
+    private final RandomAccessFile ackFile;
+    private final FileLock lock;
+    private final MappedByteBuffer ack;
+
+    /**
+     * Journal state, guarded by {@code this}.
+     */
+    private Segment head;
+    private Segment tail;
+    private long nextSequence;
+    private long confirmed;
+    private boolean online;
+    private boolean closed;
+
+    /**
+     * Position of the next frame to write to the connection.
+     */
+    private Segment cursor;
+    private int cursorPosition;
+
+    /**
+     * @param client      client writing the frames
+     * @param directory   journal directory, created if missing
+     * @param segmentSize size of each segment file in bytes
+     * @throws IOException           if the journal cannot be opened
+     * @throws IllegalStateException if another spool has the directory open
+     */
+    StompSpool(StompClient client, File directory, int segmentSize) throws IOException {
+        this.client = client;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create STOMP spool directory " + directory);
+        }
+
+        ackFile = new RandomAccessFile(new File(directory, ACK_FILE), "rw");
+        FileLock acquired = null;
+        try {
+            try {
+                acquired = ackFile.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                acquired = null;
+            }
+            if (acquired == null) {
+                throw new IllegalStateException("STOMP spool " + directory + " is in use");
+            }
+            ack = ackFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+            confirmed = ack.getLong(0);
+            nextSequence = confirmed + 1;
+            recover();
+        } catch (IOException | RuntimeException e) {
+            ackFile.close();
+            throw e;
+        }
+        lock = acquired;
+    }
+
+    /**
+     * Scan the segments left by a previous run and reopen the last one for appending.
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("Unable to list STOMP spool directory " + directory);
+        }
+        // Zero-padded names sort by sequence number
+        Arrays.sort(files);
+        for (File file : files) {
+            long firstSequence;
+            try {
+                firstSequence = Long.parseLong(file.getName().substring(0,
+                        file.getName().length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Segment segment = new Segment(file, firstSequence, map(file));
+            segment.scan();
+            if (segment.lastSequence <= confirmed || (tail != null && firstSequence != nextSequence)) {
+                // Fully confirmed, or left behind a gap by a torn write
+                delete(segment);
+                continue;
+            }
+            link(segment);
+            nextSequence = segment.lastSequence + 1;
+        }
+        if (tail == null) {
+            link(newSegment(nextSequence));
+        }
+        cursor = head;
+    }
+
+    /**
+     * Append a SEND frame to the journal and write it right away if connected.
+     *
+     * @param frame  encoded frame
+     * @param binary whether the frame must be sent as a binary message
+     * @throws IllegalArgumentException if the frame does not fit in a segment
+     * @throws IllegalStateException    if the spool has been closed or a segment cannot be created
+     */
+    synchronized void append(ByteBuffer frame, boolean binary) {
+        if (closed) {
+            throw new IllegalStateException("STOMP spool is closed");
+        }
+        int length = frame.remaining();
+        if (RECORD_HEADER + length > segmentSize) {
+            throw new IllegalArgumentException("STOMP frame of " + length + " bytes exceeds the spool segment size");
+        }
+        if (tail.end + RECORD_HEADER + length > segmentSize) {
+            try {
+                link(newSegment(nextSequence));
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to create STOMP spool segment", e);
+            }
+        }
+
+        byte[] data;
+        int offset;
+        if (frame.hasArray()) {
+            data = frame.array();
+            offset = frame.arrayOffset() + frame.position();
+        } else {
+            data = new byte[length];
+            frame.duplicate().get(data);
+            offset = 0;
+        }
+        crc.reset();
+        crc.update(data, offset, length);
+
+        ByteBuffer buffer = tail.buffer;
+        int position = tail.end;
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.putLong(position + 8, nextSequence);
+        buffer.put(position + 16, binary ? (byte) 1 : (byte) 0);
+        ByteBuffer record = buffer.duplicate();
+        record.position(position + RECORD_HEADER);
+        record.put(data, offset, length);
+        // The length marks the record complete
+        buffer.putInt(position, length);
+        tail.end = position + RECORD_HEADER + length;
+        tail.lastSequence = nextSequence++;
+        frame.position(frame.limit());
+
+        drain();
+    }
+
+    /**
+     * Write all unconfirmed frames again, on CONNECTED.
+     */
+    synchronized void connected() {
+        if (closed) {
+            return;
+        }
+        online = true;
+        cursor = head;
+        cursorPosition = 0;
+        drain();
+    }
+
+    /**
+     * Stop writing frames until the next CONNECTED.
+     */
+    synchronized void disconnected() {
+        online = false;
+    }
+
+    /**
+     * Write the frames after the cursor.
+     */
+    private void drain() {
+        while (online) {
+            if (cursorPosition >= cursor.end) {
+                if (cursor.next == null) {
+                    return;
+                }
+                cursor = cursor.next;
+                cursorPosition = 0;
+                continue;
+            }
+            ByteBuffer buffer = cursor.buffer;
+            int length = buffer.getInt(cursorPosition);
+            long sequence = buffer.getLong(cursorPosition + 8);
+            boolean binary = buffer.get(cursorPosition + 16) != 0;
+            int start = cursorPosition + RECORD_HEADER;
+            cursorPosition = start + length;
+            if (sequence <= confirmed) {
+                continue;
+            }
+
+            byte[] receipt = (StompHeader.RECEIPT + ":" + RECEIPT_PREFIX + sequence + "\n").getBytes(US_ASCII);
+            ByteBuffer source = buffer.duplicate();
+            source.limit(start + length).position(start);
+            ByteBuffer frame = ByteBuffer.allocate(length + receipt.length);
+            ByteBuffer command = source.duplicate();
+            command.limit(start + COMMAND_LINE);
+            frame.put(command).put(receipt);
+            source.position(start + COMMAND_LINE);
+            frame.put(source);
+            frame.flip();
+            try {
+                client.submitFrame(frame, binary);
+            } catch (RuntimeException e) {
+                // Lost the connection, the frame is written again once reconnected
+                online = false;
+                client.onError(e);
+            }
+        }
+    }
+
+    /**
+     * Confirm a spooled frame on RECEIPT.
+     *
+     * @param frame RECEIPT frame
+     * @return whether the receipt was requested by the spool
+     */
+    boolean onReceipt(StompFrame frame) {
+        long sequence = sequenceOf(frame);
+        if (sequence < 0) {
+            return false;
+        }
+        confirm(sequence);
+        return true;
+    }
+
+    /**
+     * Drop a spooled frame the server has rejected with ERROR, so that it is not written again on every connection.
+     *
+     * @param frame ERROR frame
+     * @return whether the frame referred to a spooled frame
+     */
+    boolean onError(StompFrame frame) {
+        long sequence = sequenceOf(frame);
+        if (sequence < 0) {
+            return false;
+        }
+        confirm(sequence);
+        client.onError(new StompErrorException(frame));
+        return true;
+    }
+
+    private synchronized void confirm(long sequence) {
+        if (closed || sequence <= confirmed) {
+            return;
+        }
+        confirmed = Math.min(sequence, nextSequence - 1);
+        ack.putLong(0, confirmed);
+        while (head != tail && head.lastSequence <= confirmed) {
+            delete(head);
+            head = head.next;
+        }
+    }
+
+    private static long sequenceOf(StompFrame frame) {
+        String receiptId = frame.getHeader(StompHeader.RECEIPT_ID);
+        if (receiptId == null || !receiptId.startsWith(RECEIPT_PREFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(receiptId.substring(RECEIPT_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Number of frames not yet confirmed by the server.
+     *
+     * @return unconfirmed frame count
+     */
+    synchronized long getUnconfirmed() {
+        return nextSequence - 1 - confirmed;
+    }
+
+    /**
+     * Stop writing frames and unlock the directory. Unconfirmed frames stay in the journal for the next spool.
+     */
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        online = false;
+        try {
+            lock.release();
+            ackFile.close();
+        } catch (IOException e) {
+            client.onError(e);
+        }
+    }
+
+    private void link(Segment segment) {
+        if (tail == null) {
+            head = segment;
+        } else {
+            tail.next = segment;
+        }
+        tail = segment;
+    }
+
+    private Segment newSegment(long firstSequence) throws IOException {
+        File file = new File(directory, String.format("%020d%s", firstSequence, SEGMENT_SUFFIX));
+        return new Segment(file, firstSequence, map(file));
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            // The mapping stays valid after the channel has been closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, channel.size()));
+        }
+    }
+
+    private static void delete(Segment segment) {
+        if (!segment.file.delete()) {
+            segment.file.deleteOnExit();
+        }
+    }
+
+    private static final class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+        long lastSequence;
+        int end;
+        Segment next;
+
+        Segment(File file, long firstSequence, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+            this.lastSequence = firstSequence - 1;
+        }
+
+        /**
+         * Find the end of the valid records, stopping at an empty or torn one.
+         */
+        void scan() {
+            CRC32 crc = new CRC32();
+            byte[] data = new byte[0];
+            int position = 0;
+            while (position + RECORD_HEADER <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || length > buffer.capacity() - position - RECORD_HEADER
+                        || buffer.getLong(position + 8) != lastSequence + 1) {
+                    break;
+                }
+                if (data.length < length) {
+                    data = new byte[length];
+                }
+                ByteBuffer record = buffer.duplicate();
+                record.position(position + RECORD_HEADER);
+                record.get(data, 0, length);
+                crc.reset();
+                crc.update(data, 0, length);
+                if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                    break;
+                }
+                position += RECORD_HEADER + length;
+                lastSequence++;
+            }
+            end = position;
+        }
+    }
+}
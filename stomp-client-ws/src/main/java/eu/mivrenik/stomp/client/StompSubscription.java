@@ -27,17 +27,44 @@ import eu.mivrenik.stomp.client.listener.StompMessageListener;
  * STOMP subscription POJO
  */
 public class StompSubscription {
-    private final Integer id;
+    private final int id;
     private final String destination;
     private final StompMessageListener listener;
+    private final StompAckMode ackMode;
 
-    public StompSubscription(Integer id, String destination, StompMessageListener listener) {
+    /**
+     * Set by the client that owns the subscription.
+     */
+    StompSubscriptionDispatcher dispatcher;
+
+    /**
+     * Broker subscription this local subscription shares when multiplexing, {@code null} otherwise.
+     */
+    StompSubscription shared;
+
+    /**
+     * Index of this subscription's pending cumulative ACK in the ack batch, guarded by the batcher.
+     */
+    int pendingAckIndex = -1;
+
+    /**
+     * Receipt requested when subscribing offline, sent with the SUBSCRIBE replayed on connect. Guarded by the
+     * holding buffer.
+     */
+    String heldReceipt;
+
+    public StompSubscription(int id, String destination, StompMessageListener listener) {
+        this(id, destination, listener, StompAckMode.AUTO);
+    }
+
+    public StompSubscription(int id, String destination, StompMessageListener listener, StompAckMode ackMode) {
         this.id = id;
         this.destination = destination;
         this.listener = listener;
+        this.ackMode = ackMode;
     }
 
-    public Integer getId() {
+    public int getId() {
         return id;
     }
 
@@ -48,4 +75,8 @@ public class StompSubscription {
     public StompMessageListener getListener() {
         return listener;
     }
+
+    public StompAckMode getAckMode() {
+        return ackMode;
+    }
 }
@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import eu.mivrenik.stomp.StompFrame;
+import eu.mivrenik.stomp.client.listener.StompQueueListener;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers the messages of a single subscription to its listener on the client's dispatch executor.
+ * <p>
+ * At most one task per subscription is scheduled at a time, so messages are delivered in order while different
+ * subscriptions are handled in parallel. The queue may be bounded, in which case the overflow policy decides what
+ * happens to messages arriving while it is full.
+ * <p>
+ * A conflating dispatcher keeps a slot per key instead of a queue. A new message overwrites the pending one with the
+ * same key in place, so keys are delivered in order of first arrival with their latest message.
+ */
+class StompSubscriptionDispatcher implements Runnable {
+    /**
+     * Messages delivered per task before yielding the executor thread to other subscriptions.
+     */
+    private static final int MAX_BATCH = 64;
+
+    /**
+     * How often a blocked reader checks whether the subscription has been cancelled.
+     */
+    private static final long BLOCK_POLL_MILLIS = 100;
+
+    private final StompClient client;
+    private final StompSubscription subscription;
+    private final Queue<StompFrame> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicBoolean full = new AtomicBoolean();
+    private volatile boolean cancelled;
+
+    private final int capacity;
+    private final StompOverflowPolicy overflowPolicy;
+
+    /**
+     * Free queue slots, {@code null} if the queue is unbounded.
+     */
+    private final Semaphore slots;
+
+    /**
+     * Conflation key and pending message per key, {@code null} unless conflating. The map is guarded by itself.
+     */
+    private final StompConflationKey conflation;
+    private final LinkedHashMap<Object, StompFrame> conflated;
+
+    StompSubscriptionDispatcher(StompClient client, StompSubscription subscription,
+                                int capacity, StompOverflowPolicy overflowPolicy, StompConflationKey conflation) {
+        this.client = client;
+        this.subscription = subscription;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.conflation = conflation;
+        // The number of keys bounds a conflating dispatcher
+        this.slots = capacity > 0 && conflation == null ? new Semaphore(capacity) : null;
+        this.conflated = conflation != null ? new LinkedHashMap<Object, StompFrame>() : null;
+    }
+
+    /**
+     * Deliver a message, inline if the client has no dispatch executor.
+     *
+     * @param frame MESSAGE frame
+     */
+    void dispatch(StompFrame frame) {
+        if (cancelled) {
+            return;
+        }
+        Executor executor = client.getDispatchExecutor();
+        if (executor == null) {
+            deliver(frame);
+            return;
+        }
+        if (conflation != null) {
+            conflate(frame);
+        } else {
+            if (slots != null && !acquireSlot(frame)) {
+                return;
+            }
+            queue.offer(frame);
+            depth.incrementAndGet();
+        }
+        schedule(executor);
+    }
+
+    /**
+     * Number of messages waiting for the listener.
+     *
+     * @return queue depth
+     */
+    int getDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Stop delivery and drop pending messages.
+     */
+    void cancel() {
+        cancelled = true;
+        queue.clear();
+        if (conflated != null) {
+            synchronized (conflated) {
+                conflated.clear();
+            }
+        }
+        depth.set(0);
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (int i = 0; i < MAX_BATCH && !cancelled; i++) {
+                StompFrame frame = poll();
+                if (frame == null) {
+                    break;
+                }
+                try {
+                    deliver(frame);
+                } catch (RuntimeException e) {
+                    client.onError(e);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+        }
+        if (depth.get() > 0 && !cancelled) {
+            Executor executor = client.getDispatchExecutor();
+            if (executor != null) {
+                schedule(executor);
+            } else {
+                run();
+            }
+        }
+    }
+
+    /**
+     * Pass a message to the listener and acknowledge it according to the subscription's ack mode: ACK if the
+     * listener returned normally, NACK if it threw. Compressed bodies are inflated here rather than on the read
+     * thread, so conflated messages that are never delivered are never inflated either. Bodies that cannot be inflated
+     * within the maximum frame size are dropped, see {@link #rejectDropped(StompFrame)}, and reported to
+     * {@link StompClient#onError(Exception)}.
+     */
+    private void deliver(StompFrame frame) {
+        boolean auto = subscription.getAckMode() == StompAckMode.AUTO;
+        StompFrame message;
+        try {
+            message = StompCompressor.inflate(frame, client.getMaxFrameSize());
+        } catch (IllegalArgumentException e) {
+            // Corrupt or oversized compressed body, rejected without reaching the listener
+            rejectDropped(frame);
+            client.onError(e);
+            return;
+        }
+        StompMetrics metrics = client.getMetrics();
+        if (auto && metrics == StompMetrics.NONE) {
+            subscription.getListener().onMessage(message);
+            return;
+        }
+        StompPrefetchPolicy prefetch = auto ? null : client.getPrefetchPolicy();
+        boolean timed = prefetch != null || metrics != StompMetrics.NONE;
+        long start = timed ? System.nanoTime() : 0;
+        boolean success = false;
+        try {
+            subscription.getListener().onMessage(message);
+            success = true;
+        } finally {
+            long elapsed = timed ? System.nanoTime() - start : 0;
+            if (!auto) {
+                client.acknowledge(subscription, frame, success);
+            }
+            if (prefetch != null) {
+                prefetch.record(subscription.getDestination(), elapsed, depth.get());
+            }
+            metrics.onListenerCompleted(subscription, elapsed, success);
+        }
+    }
+
+    private void conflate(StompFrame frame) {
+        Object key = conflation.keyOf(frame);
+        if (key == null) {
+            // Never equal to another key
+            key = new Object();
+        }
+        synchronized (conflated) {
+            if (conflated.put(key, frame) == null) {
+                depth.incrementAndGet();
+            }
+        }
+    }
+
+    private StompFrame poll() {
+        if (conflated != null) {
+            StompFrame frame;
+            synchronized (conflated) {
+                Iterator<StompFrame> pending = conflated.values().iterator();
+                if (!pending.hasNext()) {
+                    return null;
+                }
+                frame = pending.next();
+                pending.remove();
+            }
+            depth.decrementAndGet();
+            return frame;
+        }
+        StompFrame frame = queue.poll();
+        if (frame == null) {
+            return null;
+        }
+        int remaining = depth.decrementAndGet();
+        if (slots != null) {
+            slots.release();
+            if (remaining <= capacity / 2 && full.compareAndSet(true, false)) {
+                StompQueueListener listener = client.getQueueListener();
+                if (listener != null) {
+                    listener.onQueueDrained(subscription, remaining);
+                }
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Make room for a new message according to the overflow policy.
+     *
+     * @return {@code true} if the message may be queued
+     */
+    private boolean acquireSlot(StompFrame frame) {
+        if (slots.tryAcquire()) {
+            return true;
+        }
+
+        StompQueueListener listener = client.getQueueListener();
+        if (full.compareAndSet(false, true) && listener != null) {
+            listener.onQueueFull(subscription, depth.get());
+        }
+
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    while (!slots.tryAcquire(BLOCK_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                        if (cancelled) {
+                            return false;
+                        }
+                    }
+                    return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped(listener, frame);
+                    return false;
+                }
+            case DROP_OLDEST:
+                while (!slots.tryAcquire()) {
+                    // The oldest message's slot is handed over to the new one
+                    StompFrame oldest = queue.poll();
+                    if (oldest != null) {
+                        depth.decrementAndGet();
+                        dropped(listener, oldest);
+                        return true;
+                    }
+                }
+                return true;
+            case DROP_NEWEST:
+                dropped(listener, frame);
+                return false;
+            case FAIL:
+            default:
+                int failedDepth = depth.get();
+                client.removeSubscription(subscription);
+                if (listener != null) {
+                    listener.onSubscriptionFailed(subscription, failedDepth);
+                }
+                return false;
+        }
+    }
+
+    private void dropped(StompQueueListener listener, StompFrame frame) {
+        rejectDropped(frame);
+        if (listener != null) {
+            listener.onMessageDropped(subscription, frame, overflowPolicy);
+        }
+    }
+
+    /**
+     * Give a message that never reaches the listener back to the broker with NACK, if that only affects this message.
+     * <p>
+     * With {@link StompAckMode#CLIENT} a NACK would also reject every earlier message, including those still queued
+     * or being processed, so nothing is sent. The next cumulative ACK covers the message, unless the connection ends
+     * first and the broker redelivers it.
+     */
+    private void rejectDropped(StompFrame frame) {
+        if (subscription.getAckMode() == StompAckMode.CLIENT_INDIVIDUAL) {
+            client.acknowledge(subscription, frame, false);
+        }
+    }
+
+    private void schedule(Executor executor) {
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            scheduled.set(false);
+            client.onError(e);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Thread-safe registry of STOMP subscriptions.
+ * <p>
+ * Subscriptions are kept in an open-addressing table keyed by their primitive {@code int} id, so lookups on the
+ * WebSocket read thread need neither locks nor boxing. A secondary index maps destinations to their subscriptions.
+ * Modifications are serialised on the registry; readers always see a consistent table.
+ */
+public class StompSubscriptionRegistry {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final StompSubscription[] NONE = new StompSubscription[0];
+
+    /**
+     * Marks a removed slot so that probe sequences stay intact.
+     */
+    private static final StompSubscription TOMBSTONE = new StompSubscription(0, null, null);
+
+    private final AtomicInteger idSequence = new AtomicInteger();
+
+    private volatile AtomicReferenceArray<StompSubscription> table =
+            new AtomicReferenceArray<>(INITIAL_CAPACITY);
+
+    private final ConcurrentMap<String, StompSubscription[]> byDestination = new ConcurrentHashMap<>();
+
+    private int size;
+    private int tombstones;
+
+    /**
+     * Generate an id for a new subscription. Ids are unique within the registry.
+     *
+     * @return subscription id
+     */
+    public int nextId() {
+        return idSequence.incrementAndGet();
+    }
+
+    /**
+     * Get a subscription by id.
+     *
+     * @param id subscription id
+     * @return subscription or {@code null} if there is none with this id
+     */
+    public StompSubscription get(int id) {
+        AtomicReferenceArray<StompSubscription> t = table;
+        int mask = t.length() - 1;
+        for (int i = hash(id) & mask; ; i = (i + 1) & mask) {
+            StompSubscription s = t.get(i);
+            if (s == null) {
+                return null;
+            }
+            if (s != TOMBSTONE && s.getId() == id) {
+                return s;
+            }
+        }
+    }
+
+    /**
+     * Get all subscriptions to a destination.
+     *
+     * @param destination destination
+     * @return unmodifiable snapshot of the subscriptions, possibly empty
+     */
+    public List<StompSubscription> get(String destination) {
+        return Collections.unmodifiableList(Arrays.asList(getArray(destination)));
+    }
+
+    /**
+     * Get all subscriptions to a destination without copying. The array is shared with the index, which replaces
+     * rather than modifies it, and must not be written to.
+     *
+     * @param destination destination
+     * @return subscriptions, possibly empty
+     */
+    StompSubscription[] getArray(String destination) {
+        StompSubscription[] subscriptions = byDestination.get(destination);
+        return subscriptions != null ? subscriptions : NONE;
+    }
+
+    /**
+     * Get all registered subscriptions.
+     *
+     * @return snapshot of the subscriptions
+     */
+    public List<StompSubscription> getAll() {
+        List<StompSubscription> all = new ArrayList<>();
+        for (StompSubscription[] subscriptions : byDestination.values()) {
+            for (StompSubscription s : subscriptions) {
+                all.add(s);
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Number of registered subscriptions.
+     *
+     * @return subscription count
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Register a subscription, replacing any subscription with the same id.
+     *
+     * @param subscription subscription
+     */
+    public synchronized void add(StompSubscription subscription) {
+        remove(subscription.getId());
+
+        if ((size + tombstones + 1) * 2 > table.length()) {
+            rehash();
+        }
+        AtomicReferenceArray<StompSubscription> t = table;
+        int mask = t.length() - 1;
+        int i = hash(subscription.getId()) & mask;
+        while (t.get(i) != null && t.get(i) != TOMBSTONE) {
+            i = (i + 1) & mask;
+        }
+        if (t.get(i) == TOMBSTONE) {
+            tombstones--;
+        }
+        t.set(i, subscription);
+        size++;
+
+        StompSubscription[] current = getArray(subscription.getDestination());
+        StompSubscription[] updated = new StompSubscription[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = subscription;
+        byDestination.put(subscription.getDestination(), updated);
+    }
+
+    /**
+     * Unregister a subscription.
+     *
+     * @param id subscription id
+     * @return removed subscription or {@code null} if there was none with this id
+     */
+    public synchronized StompSubscription remove(int id) {
+        AtomicReferenceArray<StompSubscription> t = table;
+        int mask = t.length() - 1;
+        for (int i = hash(id) & mask; ; i = (i + 1) & mask) {
+            StompSubscription s = t.get(i);
+            if (s == null) {
+                return null;
+            }
+            if (s != TOMBSTONE && s.getId() == id) {
+                t.set(i, TOMBSTONE);
+                size--;
+                tombstones++;
+                removeFromDestination(s);
+                return s;
+            }
+        }
+    }
+
+    /**
+     * Unregister all subscriptions.
+     */
+    public synchronized void clear() {
+        table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+        byDestination.clear();
+        size = 0;
+        tombstones = 0;
+    }
+
+    private void removeFromDestination(StompSubscription subscription) {
+        StompSubscription[] current = getArray(subscription.getDestination());
+        if (current.length == 1) {
+            byDestination.remove(subscription.getDestination());
+            return;
+        }
+        StompSubscription[] updated = new StompSubscription[current.length - 1];
+        int j = 0;
+        for (StompSubscription s : current) {
+            if (s != subscription && j < updated.length) {
+                updated[j++] = s;
+            }
+        }
+        byDestination.put(subscription.getDestination(), updated);
+    }
+
+    /**
+     * Rebuild the table without tombstones, growing it if it is more than a quarter full.
+     */
+    private void rehash() {
+        AtomicReferenceArray<StompSubscription> old = table;
+        int capacity = old.length();
+        while ((size + 1) * 4 > capacity) {
+            capacity *= 2;
+        }
+        AtomicReferenceArray<StompSubscription> t = new AtomicReferenceArray<>(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < old.length(); j++) {
+            StompSubscription s = old.get(j);
+            if (s != null && s != TOMBSTONE) {
+                int i = hash(s.getId()) & mask;
+                while (t.get(i) != null) {
+                    i = (i + 1) & mask;
+                }
+                t.set(i, s);
+            }
+        }
+        table = t;
+        tombstones = 0;
+    }
+
+    /**
+     * Spread sequential ids across the table.
+     */
+    private static int hash(int id) {
+        int h = id * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel shared by all clients for coarse, frequently rescheduled timeouts such as heart-beats.
+ * <p>
+ * A single daemon thread advances the wheel once per tick and runs the timeouts of the current bucket, so
+ * scheduling and cancelling are O(1) regardless of the number of connections. Timeouts fire up to one tick late.
+ * Tasks run on the wheel thread and must return quickly.
+ */
+final class StompTimerWheel implements Runnable {
+    /**
+     * Wheel resolution in milliseconds.
+     */
+    static final long TICK_MILLIS = 50;
+
+    /**
+     * Number of buckets, a power of two. One revolution covers about 25 seconds.
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    private static final StompTimerWheel INSTANCE = new StompTimerWheel();
+
+    private final long tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * Timeouts scheduled since the last tick, moved into the buckets by the wheel thread.
+     */
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Bucket lists, only accessed by the wheel thread.
+     */
+    private final Timeout[] buckets = new Timeout[WHEEL_SIZE];
+    private long tick;
+
+    private StompTimerWheel() {
+        Thread thread = new Thread(this, "stomp-timer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static StompTimerWheel get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Run a task once after a delay.
+     *
+     * @param client client the task belongs to, notified if the task fails
+     * @param task   task
+     * @param delay  delay
+     * @param unit   unit of {@code delay}
+     * @return handle to cancel the task
+     */
+    Timeout schedule(StompClient client, Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(client, task, System.nanoTime() + unit.toNanos(delay));
+        added.offer(timeout);
+        return timeout;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            long sleepNanos = startNanos + tick * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    // Daemon thread, keep ticking
+                }
+                continue;
+            }
+            transferAdded();
+            expire((int) (tick & (WHEEL_SIZE - 1)));
+            tick++;
+        }
+    }
+
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long deadlineTick = Math.max(tick, (timeout.deadlineNanos - startNanos + tickNanos - 1) / tickNanos);
+            timeout.rounds = (deadlineTick - tick) / WHEEL_SIZE;
+            int bucket = (int) (deadlineTick & (WHEEL_SIZE - 1));
+            timeout.next = buckets[bucket];
+            buckets[bucket] = timeout;
+        }
+    }
+
+    private void expire(int bucket) {
+        Timeout previous = null;
+        Timeout timeout = buckets[bucket];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.cancelled || timeout.rounds <= 0) {
+                if (previous == null) {
+                    buckets[bucket] = next;
+                } else {
+                    previous.next = next;
+                }
+                timeout.next = null;
+                if (!timeout.cancelled) {
+                    run(timeout);
+                }
+            } else {
+                timeout.rounds--;
+                previous = timeout;
+            }
+            timeout = next;
+        }
+    }
+
+    private static void run(Timeout timeout) {
+        try {
+            timeout.task.run();
+        } catch (RuntimeException e) {
+            try {
+                timeout.client.onError(e);
+            } catch (RuntimeException ignored) {
+                // A failing error handler must not stop the timeouts of other clients
+            }
+        }
+    }
+
+    /**
+     * Scheduled task handle.
+     */
+    static final class Timeout {
+        private final StompClient client;
+        private final Runnable task;
+        private final long deadlineNanos;
+        private volatile boolean cancelled;
+
+        /**
+         * Wheel state, only accessed by the wheel thread.
+         */
+        private long rounds;
+        private Timeout next;
+
+        private Timeout(StompClient client, Runnable task, long deadlineNanos) {
+            this.client = client;
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Prevent the task from running. The entry is unlinked lazily when its bucket comes up.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
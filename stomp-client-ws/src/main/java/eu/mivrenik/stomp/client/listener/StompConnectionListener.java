@@ -22,4 +22,10 @@ public abstract class StompConnectionListener {
      */
     public void onDisconnected() {
     }
+
+    /**
+     * Nothing has been received within the negotiated heart-beat interval. The connection is dropped afterwards.
+     */
+    public void onHeartbeatTimeout() {
+    }
 }
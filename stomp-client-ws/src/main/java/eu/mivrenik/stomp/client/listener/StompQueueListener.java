@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp.client.listener;
+
+import eu.mivrenik.stomp.StompFrame;
+import eu.mivrenik.stomp.client.StompOverflowPolicy;
+import eu.mivrenik.stomp.client.StompSubscription;
+
+/**
+ * Subscription inbound queue listener.
+ * <p>
+ * Callbacks are invoked on the WebSocket read thread, except {@link #onQueueDrained} which runs on the dispatch
+ * executor, and must return quickly.
+ */
+public abstract class StompQueueListener {
+
+    /**
+     * Subscription queue has reached its capacity. Not repeated until the queue has drained.
+     *
+     * @param subscription subscription
+     * @param depth        number of queued messages
+     */
+    public void onQueueFull(StompSubscription subscription, int depth) {
+    }
+
+    /**
+     * Subscription queue has drained to half its capacity after being full.
+     *
+     * @param subscription subscription
+     * @param depth        number of queued messages
+     */
+    public void onQueueDrained(StompSubscription subscription, int depth) {
+    }
+
+    /**
+     * A message has been dropped because the subscription queue was full.
+     *
+     * @param subscription subscription
+     * @param stompFrame   dropped MESSAGE frame
+     * @param policy       overflow policy that caused the drop
+     */
+    public void onMessageDropped(StompSubscription subscription, StompFrame stompFrame, StompOverflowPolicy policy) {
+    }
+
+    /**
+     * Subscription has been removed because its queue overflowed with the {@link StompOverflowPolicy#FAIL} policy.
+     *
+     * @param subscription subscription
+     * @param depth        number of messages queued at the time of failure
+     */
+    public void onSubscriptionFailed(StompSubscription subscription, int depth) {
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Body of a large frame being received into a memory-mapped temporary file.
+ * <p>
+ * The file is deleted as soon as it has been mapped, so the body lives in the page cache rather than on the heap and
+ * the space is reclaimed once the mapping has been garbage collected. Where open files cannot be deleted, it is
+ * deleted on exit instead.
+ */
+final class StompBodySpill {
+    private final StompFrame frame;
+    private final MappedByteBuffer body;
+
+    /**
+     * @param frame     frame with headers, waiting for its body
+     * @param length    body length from {@code content-length}
+     * @param directory directory of the temporary file, {@code null} for the default temporary directory
+     * @throws IllegalStateException if the file cannot be created or mapped
+     */
+    StompBodySpill(StompFrame frame, int length, File directory) {
+        this.frame = frame;
+        File file = null;
+        try {
+            file = File.createTempFile("stomp-", ".body", directory);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                 FileChannel channel = raf.getChannel()) {
+                // The mapping stays valid after the channel has been closed
+                body = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to spill STOMP frame body to disk", e);
+        } finally {
+            if (file != null && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Copy body bytes from the source, and the frame's NUL terminator once the body is complete.
+     *
+     * @param source decoder input, advanced past the consumed bytes
+     * @return the frame once it is complete, {@code null} if more data is needed
+     * @throws IllegalArgumentException if the body is not followed by a NUL byte
+     */
+    StompFrame fill(ByteBuffer source) {
+        if (body.hasRemaining()) {
+            int length = Math.min(source.remaining(), body.remaining());
+            ByteBuffer slice = source.duplicate();
+            slice.limit(slice.position() + length);
+            body.put(slice);
+            source.position(source.position() + length);
+        }
+        if (body.hasRemaining() || !source.hasRemaining()) {
+            return null;
+        }
+        if (source.get() != 0) {
+            throw new IllegalArgumentException("STOMP frame body does not match content-length " + body.capacity());
+        }
+        body.flip();
+        frame.setMappedBody(body);
+        return frame;
+    }
+}
@@ -21,33 +21,124 @@
  */
 package eu.mivrenik.stomp;
 
+import java.nio.ByteBuffer;
+
 /**
  * STOMP commands.
  */
 public enum StompCommand {
+    ABORT("ABORT"),
+    ACK("ACK"),
+    BEGIN("BEGIN"),
+    COMMIT("COMMIT"),
     CONNECT("CONNECT"),
     CONNECTED("CONNECTED"),
     DISCONNECT("DISCONNECT"),
     ERROR("ERROR"),
     MESSAGE("MESSAGE"),
+    NACK("NACK"),
     RECEIPT("RECEIPT"),
     SEND("SEND"),
+    STOMP("STOMP"),
     SUBSCRIBE("SUBSCRIBE"),
     UNSUBSCRIBE("UNSUBSCRIBE");
 
     private final String value;
 
+    /**
+     * UTF-8 encoded value for the frame encoder.
+     */
+    final byte[] bytes;
+
+    /**
+     * Commands grouped by their first letter for allocation-free lookups.
+     */
+    private static final StompCommand[][] BY_FIRST_LETTER = new StompCommand['Z' - 'A' + 1][0];
+    private static final StompCommand[] NONE = new StompCommand[0];
+
+    static {
+        for (StompCommand c : values()) {
+            int i = c.value.charAt(0) - 'A';
+            StompCommand[] group = BY_FIRST_LETTER[i];
+            StompCommand[] grown = new StompCommand[group.length + 1];
+            System.arraycopy(group, 0, grown, 0, group.length);
+            grown[group.length] = c;
+            BY_FIRST_LETTER[i] = grown;
+        }
+    }
+
+    /**
+     * Get command by its value.
+     *
+     * @param value command value
+     * @return STOMP command
+     * @throws IllegalArgumentException if the command is unknown
+     */
     public static StompCommand fromValue(String value) {
-        for (StompCommand c : StompCommand.values()) {
-            if (c.value.equals(value)) {
+        StompCommand command = lookup(value, 0, value.length());
+        if (command == null) {
+            throw new IllegalArgumentException("Unknown STOMP command: " + value);
+        }
+        return command;
+    }
+
+    /**
+     * Find a command by the value between {@code from} and {@code to} in the string.
+     *
+     * @return STOMP command or {@code null} if the command is unknown
+     */
+    static StompCommand lookup(String data, int from, int to) {
+        StompCommand[] candidates = candidates(from < to ? data.charAt(from) : 0);
+        int length = to - from;
+        for (StompCommand c : candidates) {
+            if (c.value.length() == length && data.regionMatches(from, c.value, 0, length)) {
                 return c;
             }
         }
-        throw new IllegalArgumentException("Unknown STOMP command: " + value);
+        return null;
+    }
+
+    /**
+     * Find a command by the UTF-8 value between {@code from} and {@code to} in the buffer.
+     *
+     * @return STOMP command or {@code null} if the command is unknown
+     */
+    static StompCommand lookup(ByteBuffer buffer, int from, int to) {
+        StompCommand[] candidates = candidates(from < to ? buffer.get(from) : 0);
+        int length = to - from;
+        candidates:
+        for (StompCommand c : candidates) {
+            if (c.bytes.length != length) {
+                continue;
+            }
+            for (int i = 1; i < length; i++) {
+                if (buffer.get(from + i) != c.bytes[i]) {
+                    continue candidates;
+                }
+            }
+            return c;
+        }
+        return null;
+    }
+
+    private static StompCommand[] candidates(int firstLetter) {
+        int i = firstLetter - 'A';
+        return i >= 0 && i < BY_FIRST_LETTER.length ? BY_FIRST_LETTER[i] : NONE;
+    }
+
+    /**
+     * Whether header names and values of this frame are escaped. CONNECT (and its STOMP alias) and CONNECTED frames
+     * are not escaped for backward compatibility with STOMP 1.0.
+     *
+     * @return {@code true} if headers are escaped
+     */
+    boolean escapesHeaders() {
+        return this != CONNECT && this != STOMP && this != CONNECTED;
     }
 
     private StompCommand(String value) {
         this.value = value;
+        this.bytes = value.getBytes(StompFrame.UTF_8);
     }
 
     @Override
@@ -21,7 +21,9 @@
  */
 package eu.mivrenik.stomp;
 
-import java.util.HashMap;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.Map;
 
 /**
@@ -30,81 +32,547 @@ import java.util.Map;
  * @link https://eu.mivrenik.stomp.github.io/eu.mivrenik.stomp-specification-1.2.html#STOMP_Frames
  */
 public class StompFrame {
+    /**
+     * STOMP frames are UTF-8 encoded.
+     */
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int DEFAULT_ENCODE_CAPACITY = 256;
+
     private StompCommand command;
-    private Map<String, String> headers = new HashMap<>();
+    private StompHeaders headers;
     private String body;
+    private byte[] bodyBytes;
+    private boolean binaryBody;
+
+    /**
+     * Body of a large frame spilled to a memory-mapped file by the decoder, {@code null} otherwise.
+     */
+    private ByteBuffer mappedBody;
 
     /**
      * Create frame from string.
+     * <p>
+     * The string is scanned once; headers and body are sliced by index. If no NUL terminator is present the rest of
+     * the string is treated as the body.
      *
      * @param data Data string
-     * @return STOMP frame instance
+     * @return STOMP frame instance or {@code null} if the data holds only heart-beats or an unknown command
+     * @throws IllegalArgumentException if the data is not a valid STOMP frame
      */
     public static StompFrame fromString(String data) {
-        String[] lines = data.split("\n");
-        int pos = 0;
-
-        // Ignore empty lines
-        while (pos < lines.length && lines[pos].isEmpty()) {
-            pos++;
+        int length = data.length();
+        int pos = skipEol(data, 0, length);
+        if (pos == length) {
+            return null;
         }
 
         // Command
-        StompCommand command = StompCommand.fromValue(lines[pos++]);
+        int eol = data.indexOf('\n', pos);
+        if (eol < 0) {
+            throw new IllegalArgumentException("Incomplete STOMP frame: missing command");
+        }
+        StompCommand command = StompCommand.lookup(data, pos, trimCr(data, pos, eol));
+        if (command == null) {
+            return null;
+        }
+        pos = eol + 1;
 
         // Headers
-        Map<String, String> headers = new HashMap<>();
-        while (!lines[pos].isEmpty()) {
-            String[] keyValue = lines[pos].split(":");
-            headers.put(keyValue[0], keyValue[1]);
-            pos++;
+        boolean escaped = command.escapesHeaders();
+        StompHeaders headers = new StompHeaders();
+        while (true) {
+            eol = data.indexOf('\n', pos);
+            if (eol < 0) {
+                throw new IllegalArgumentException("Incomplete STOMP frame: missing end of headers");
+            }
+            int end = trimCr(data, pos, eol);
+            if (end == pos) {
+                break;
+            }
+            int colon = data.indexOf(':', pos);
+            if (colon < 0 || colon > end) {
+                throw new IllegalArgumentException("Malformed STOMP header: " + data.substring(pos, end));
+            }
+            String value = header(data.substring(colon + 1, end), escaped);
+            StompHeader known = StompHeader.lookup(data, pos, colon);
+            if (known != null) {
+                headers.addIfAbsent(known, value);
+            } else {
+                headers.addIfAbsent(header(data.substring(pos, colon), escaped), value);
+            }
+            pos = eol + 1;
         }
-        pos++;
+        pos = eol + 1;
 
         // Body
-        StringBuilder body = new StringBuilder();
-        for (; pos < lines.length; pos++) {
-            body.append(lines[pos]);
-            if (body.charAt(body.length() - 1) == '\0') {
-                body.deleteCharAt(body.length() - 1);
-                break;
+        int contentLength = contentLength(headers);
+        int bodyEnd;
+        if (contentLength >= 0) {
+            bodyEnd = charIndexOfByteOffset(data, pos, contentLength);
+            if (bodyEnd < 0 || bodyEnd >= length || data.charAt(bodyEnd) != '\0') {
+                throw new IllegalArgumentException("STOMP frame body does not match content-length " + contentLength);
+            }
+        } else {
+            bodyEnd = data.indexOf('\0', pos);
+            if (bodyEnd < 0) {
+                bodyEnd = length;
+            }
+        }
+
+        StompFrame frame = new StompFrame(command, headers, false);
+        frame.body = data.substring(pos, bodyEnd);
+        return frame;
+    }
+
+    /**
+     * Decode a single frame from UTF-8 encoded bytes.
+     * <p>
+     * Decoding starts at the buffer's position; leading EOLs (heart-beats) and frames with unknown commands are
+     * skipped. On success the position is advanced past the frame's NUL terminator. If the buffer does not hold a
+     * complete frame, {@code null} is returned and the position is left at the start of the incomplete data.
+     *
+     * @param buffer Source buffer
+     * @return STOMP frame instance or {@code null} if the frame is incomplete
+     * @throws IllegalArgumentException if the data is not a valid STOMP frame
+     */
+    public static StompFrame decode(ByteBuffer buffer) {
+        return decode(buffer, null);
+    }
+
+    /**
+     * Decode a single frame, letting a stream decoder check the frame size and take over large bodies.
+     * <p>
+     * If the decoder starts spilling the body, {@code null} is returned with the position at the start of the body.
+     *
+     * @param buffer  Source buffer
+     * @param decoder (optional) stream decoder
+     * @return STOMP frame instance or {@code null} if the frame is incomplete or spilling
+     */
+    static StompFrame decode(ByteBuffer buffer, StompFrameDecoder decoder) {
+        int limit = buffer.limit();
+
+        while (true) {
+            int pos = skipEol(buffer, buffer.position(), limit);
+            int start = pos;
+
+            // Command
+            int eol = indexOf(buffer, (byte) '\n', pos, limit);
+            if (eol < 0) {
+                return null;
+            }
+            StompCommand command = StompCommand.lookup(buffer, pos, trimCr(buffer, pos, eol));
+            pos = eol + 1;
+
+            // Headers. Unknown frames are only scanned for their length, so their headers are kept unescaped.
+            boolean escaped = command != null && command.escapesHeaders();
+            StompHeaders headers = new StompHeaders();
+            while (true) {
+                eol = indexOf(buffer, (byte) '\n', pos, limit);
+                if (eol < 0) {
+                    return null;
+                }
+                int end = trimCr(buffer, pos, eol);
+                if (end == pos) {
+                    break;
+                }
+                int colon = indexOf(buffer, (byte) ':', pos, end);
+                if (colon < 0) {
+                    throw new IllegalArgumentException("Malformed STOMP header: " + string(buffer, pos, end));
+                }
+                String value = header(string(buffer, colon + 1, end), escaped);
+                StompHeader known = StompHeader.lookup(buffer, pos, colon);
+                if (known != null) {
+                    headers.addIfAbsent(known, value);
+                } else if (command != null) {
+                    headers.addIfAbsent(header(string(buffer, pos, colon), escaped), value);
+                }
+                pos = eol + 1;
+            }
+            pos = eol + 1;
+
+            // Body
+            int contentLength = contentLength(headers);
+            if (decoder != null && contentLength >= 0) {
+                decoder.checkFrameSize((long) pos - start + contentLength + 1);
+                if (command != null && decoder.spills(contentLength)) {
+                    buffer.position(pos);
+                    decoder.spill(new StompFrame(command, headers, false), contentLength);
+                    return null;
+                }
+            }
+            int bodyEnd;
+            if (contentLength >= 0) {
+                if (limit - pos <= contentLength) {
+                    return null;
+                }
+                bodyEnd = pos + contentLength;
+                if (buffer.get(bodyEnd) != 0) {
+                    throw new IllegalArgumentException(
+                            "STOMP frame body does not match content-length " + contentLength);
+                }
+            } else {
+                bodyEnd = indexOf(buffer, (byte) 0, pos, limit);
+                if (bodyEnd < 0) {
+                    return null;
+                }
+            }
+            if (decoder != null) {
+                // Frames without content-length are only measured once their NUL has been found
+                decoder.checkFrameSize((long) bodyEnd + 1 - start);
+            }
+
+            if (command == null) {
+                buffer.position(bodyEnd + 1);
+                continue;
             }
+
+            StompFrame frame = new StompFrame(command, headers, false);
+            frame.bodyBytes = bytes(buffer, pos, bodyEnd);
+            frame.binaryBody = true;
+            buffer.position(bodyEnd + 1);
+            return frame;
+        }
+    }
+
+    private static int skipEol(String data, int pos, int end) {
+        while (pos < end && (data.charAt(pos) == '\n' || data.charAt(pos) == '\r')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int skipEol(ByteBuffer buffer, int pos, int end) {
+        while (pos < end && (buffer.get(pos) == '\n' || buffer.get(pos) == '\r')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int trimCr(String data, int start, int eol) {
+        return eol > start && data.charAt(eol - 1) == '\r' ? eol - 1 : eol;
+    }
+
+    private static int trimCr(ByteBuffer buffer, int start, int eol) {
+        return eol > start && buffer.get(eol - 1) == '\r' ? eol - 1 : eol;
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String string(ByteBuffer buffer, int from, int to) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + from, to - from, UTF_8);
+        }
+        return new String(bytes(buffer, from, to), UTF_8);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + from, bytes, 0, bytes.length);
+        } else {
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit(to).position(from);
+            slice.get(bytes);
         }
+        return bytes;
+    }
+
+    /**
+     * Find the index of the char that ends a run of {@code byteLength} UTF-8 encoded bytes starting at {@code from}.
+     *
+     * @return char index or -1 if the string is shorter than that
+     */
+    private static int charIndexOfByteOffset(String data, int from, int byteLength) {
+        int bytes = 0;
+        int i = from;
+        while (bytes < byteLength) {
+            if (i >= data.length()) {
+                return -1;
+            }
+            char c = data.charAt(i++);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes == byteLength ? i : -1;
+    }
 
-        return new StompFrame(command, headers, body.toString());
+    /**
+     * Undo STOMP 1.2 header value escaping.
+     */
+    private static String header(String value, boolean escaped) {
+        if (!escaped || value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                switch (next) {
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 'c':
+                        sb.append(':');
+                        break;
+                    case '\\':
+                        sb.append('\\');
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Undefined STOMP header escape sequence: \\" + next);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static int contentLength(StompHeaders headers) {
+        String value = headers.get(StompHeader.CONTENT_LENGTH);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            int contentLength = Integer.parseInt(value.trim());
+            if (contentLength < 0) {
+                throw new IllegalArgumentException("Negative STOMP content-length: " + value);
+            }
+            return contentLength;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid STOMP content-length: " + value, e);
+        }
     }
 
     public StompFrame(StompCommand command) {
-        this(command, null, null);
+        this(command, null, (String) null);
     }
 
     public StompFrame(StompCommand command, Map<String, String> headers) {
-        this(command, headers, null);
+        this(command, headers, (String) null);
     }
 
     public StompFrame(StompCommand command, Map<String, String> headers, String body) {
-        this.command = command;
+        this(command, headers, true);
         this.body = body;
+    }
 
-        if (headers != null) {
-            for (String k : headers.keySet()) {
-                this.headers.put(k, headers.get(k));
-            }
-        }
+    /**
+     * Create frame with a binary body. The array is not copied.
+     *
+     * @param command STOMP command
+     * @param headers (optional) headers
+     * @param body    (optional) body bytes
+     */
+    public StompFrame(StompCommand command, Map<String, String> headers, byte[] body) {
+        this(command, headers, true);
+        this.bodyBytes = body;
+        this.binaryBody = body != null;
+    }
+
+    private StompFrame(StompCommand command, Map<String, String> headers, boolean copyHeaders) {
+        this.command = command;
+        this.headers = !copyHeaders && headers instanceof StompHeaders
+                ? (StompHeaders) headers
+                : new StompHeaders(headers);
     }
 
     public StompCommand getCommand() {
         return command;
     }
 
-    public Map<String, String> getHeaders() {
+    public StompHeaders getHeaders() {
         return headers;
     }
 
+    /**
+     * Get a well-known header value without hashing the header name.
+     *
+     * @param header header
+     * @return header value or {@code null} if absent
+     */
+    public String getHeader(StompHeader header) {
+        return headers.get(header);
+    }
+
+    /**
+     * Get a header value.
+     *
+     * @param name header name
+     * @return header value or {@code null} if absent
+     */
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * Get body as text. Binary bodies are decoded as UTF-8 on first access.
+     *
+     * @return body text or {@code null} if the frame has no body
+     */
     public String getBody() {
+        if (body == null && bodyBytes != null) {
+            body = new String(bodyBytes, UTF_8);
+        } else if (body == null && mappedBody != null) {
+            body = UTF_8.decode(mappedBody.duplicate()).toString();
+        }
         return body;
     }
 
+    /**
+     * Get raw body bytes. Text bodies are encoded as UTF-8 on first access.
+     * <p>
+     * The returned array is shared with the frame and must not be modified. A memory-mapped body is copied onto the
+     * heap; use {@link #getBodyBuffer()} or {@link #getBodyStream()} for large frames instead.
+     *
+     * @return body bytes or {@code null} if the frame has no body
+     */
+    public byte[] getBodyBytes() {
+        if (bodyBytes == null && body != null) {
+            bodyBytes = body.getBytes(UTF_8);
+        } else if (bodyBytes == null && mappedBody != null) {
+            bodyBytes = new byte[mappedBody.remaining()];
+            mappedBody.duplicate().get(bodyBytes);
+        }
+        return bodyBytes;
+    }
+
+    /**
+     * Get a read-only view of the raw body bytes. The view of a memory-mapped body reads straight from the mapping.
+     *
+     * @return body buffer or {@code null} if the frame has no body
+     */
+    public ByteBuffer getBodyBuffer() {
+        if (bodyBytes == null && mappedBody != null) {
+            return mappedBody.asReadOnlyBuffer();
+        }
+        byte[] bytes = getBodyBytes();
+        return bytes != null ? ByteBuffer.wrap(bytes).asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * Get a stream over the raw body bytes, see {@link #getBodyBuffer()}.
+     *
+     * @return body stream or {@code null} if the frame has no body
+     */
+    public InputStream getBodyStream() {
+        ByteBuffer buffer = getBodyBuffer();
+        return buffer != null ? new BufferInputStream(buffer) : null;
+    }
+
+    /**
+     * Get the body length in bytes without copying a memory-mapped body or encoding a text body.
+     *
+     * @return body length, 0 if the frame has no body
+     */
+    public int getBodyLength() {
+        if (bodyBytes != null) {
+            return bodyBytes.length;
+        }
+        if (mappedBody != null) {
+            return mappedBody.remaining();
+        }
+        return body != null ? StompFrameEncoder.utf8Length(body) : 0;
+    }
+
+    /**
+     * Check if the body has been spilled to a memory-mapped file because of its size.
+     *
+     * @return {@code true} if the body is memory-mapped
+     */
+    public boolean isBodyMapped() {
+        return mappedBody != null;
+    }
+
+    /**
+     * Attach a memory-mapped body, see {@link StompBodySpill}.
+     */
+    void setMappedBody(ByteBuffer body) {
+        this.mappedBody = body;
+        this.binaryBody = true;
+    }
+
+    /**
+     * Check if the body was supplied as raw bytes, i.e. the frame is best sent as a binary message.
+     *
+     * @return {@code true} if the frame has a binary body
+     */
+    public boolean hasBinaryBody() {
+        return binaryBody;
+    }
+
+    /**
+     * Encode frame as UTF-8 bytes.
+     * <p>
+     * A {@code content-length} header matching the body is always written, so binary bodies may contain NUL bytes.
+     * Use a {@link StompFrameEncoder} to encode frames into a reusable buffer instead.
+     *
+     * @return buffer ready to be read
+     */
+    public ByteBuffer encode() {
+        return new StompFrameEncoder(DEFAULT_ENCODE_CAPACITY, Integer.MAX_VALUE).encode(this);
+    }
+
+    /**
+     * Input stream over a byte buffer.
+     */
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -112,14 +580,15 @@ public class StompFrame {
         sb.append(command);
         sb.append('\n');
         // Headers
-        for (String k : headers.keySet()) {
-            sb.append(k);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            sb.append(header.getKey());
             sb.append(':');
-            sb.append(headers.get(k));
+            sb.append(header.getValue());
             sb.append('\n');
         }
         sb.append('\n');
         // Body
+        String body = getBody();
         if (body != null) {
             sb.append(body);
         }
@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Stateful STOMP frame decoder.
+ * <p>
+ * Accepts arbitrary chunks of a STOMP stream, such as WebSocket messages holding several coalesced frames or only a
+ * part of a large frame. Incomplete data is kept between calls and heart-beat EOLs between frames are discarded.
+ * <p>
+ * Frames larger than a maximum size are rejected as soon as their size is known, i.e. once the headers with the
+ * {@code content-length} have arrived, or otherwise once that many bytes are pending or the terminating NUL has
+ * been found. Bodies of at least a spill threshold are streamed into a memory-mapped temporary file as they arrive
+ * instead of being buffered on the heap, see {@link StompFrame#getBodyBuffer()}. Spilling needs a
+ * {@code content-length} header.
+ * <p>
+ * Instances are not thread-safe; a decoder is meant to be fed from a single reader thread.
+ */
+public class StompFrameDecoder {
+    private static final int DEFAULT_INITIAL_CAPACITY = 4096;
+
+    private final CharsetEncoder encoder = StompFrame.UTF_8.newEncoder();
+
+    /**
+     * Pending data is kept between position and limit.
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * Pending data ends with an incomplete frame, so there is no point decoding until a NUL byte arrives.
+     */
+    private boolean awaitingTerminator;
+
+    private int maxFrameSize = Integer.MAX_VALUE;
+    private int spillThreshold = Integer.MAX_VALUE;
+    private File spillDirectory;
+
+    /**
+     * Body of the current frame being spilled, {@code null} if none.
+     */
+    private StompBodySpill spill;
+
+    public StompFrameDecoder() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    public StompFrameDecoder(int initialCapacity) {
+        buffer = ByteBuffer.allocate(initialCapacity);
+        buffer.limit(0);
+    }
+
+    /**
+     * Set the maximum size of a frame, including command, headers and terminator.
+     *
+     * @param maxFrameSize maximum frame size in bytes
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        if (maxFrameSize <= 0) {
+            throw new IllegalArgumentException("Invalid maximum STOMP frame size: " + maxFrameSize);
+        }
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Spill bodies of at least the given size to memory-mapped temporary files.
+     *
+     * @param spillThreshold smallest body to spill in bytes, {@link Integer#MAX_VALUE} to never spill
+     * @param directory      (optional) directory of the temporary files, the default temporary directory if
+     *                       {@code null}
+     */
+    public void setSpillThreshold(int spillThreshold, File directory) {
+        if (spillThreshold <= 0) {
+            throw new IllegalArgumentException("Invalid STOMP spill threshold: " + spillThreshold);
+        }
+        this.spillThreshold = spillThreshold;
+        this.spillDirectory = directory;
+    }
+
+    /**
+     * Decode a chunk of UTF-8 encoded bytes.
+     * <p>
+     * The chunk is fully consumed. Bytes of a trailing incomplete frame are retained until the next call.
+     *
+     * @param chunk Data chunk
+     * @return frames completed by this chunk, possibly empty
+     * @throws IllegalArgumentException if the stream is not valid STOMP; pending data is discarded
+     */
+    public List<StompFrame> decode(ByteBuffer chunk) {
+        if (!buffer.hasRemaining()) {
+            // Fast path: decode straight from the chunk and only retain the leftover
+            List<StompFrame> frames = decodeFrames(chunk);
+            append(chunk);
+            awaitingTerminator = buffer.hasRemaining();
+            checkPending();
+            return frames;
+        }
+
+        boolean terminated = containsNul(chunk);
+        append(chunk);
+        if (awaitingTerminator && !terminated && !inspectsHeaders()) {
+            checkPending();
+            return Collections.emptyList();
+        }
+        List<StompFrame> frames = decodeFrames(buffer);
+        awaitingTerminator = buffer.hasRemaining();
+        checkPending();
+        return frames;
+    }
+
+    /**
+     * Decode a chunk of text, e.g. a WebSocket text message.
+     *
+     * @param chunk Data chunk
+     * @return frames completed by this chunk, possibly empty
+     * @throws IllegalArgumentException if the stream is not valid STOMP; pending data is discarded
+     */
+    public List<StompFrame> decode(String chunk) {
+        boolean terminated = chunk.indexOf('\0') >= 0;
+        append(chunk);
+        if (awaitingTerminator && !terminated && !inspectsHeaders()) {
+            checkPending();
+            return Collections.emptyList();
+        }
+        List<StompFrame> frames = decodeFrames(buffer);
+        awaitingTerminator = buffer.hasRemaining();
+        checkPending();
+        return frames;
+    }
+
+    /**
+     * Discard any pending data, e.g. after the underlying connection has been reset.
+     */
+    public void reset() {
+        buffer.clear();
+        buffer.limit(0);
+        encoder.reset();
+        awaitingTerminator = false;
+        spill = null;
+    }
+
+    /**
+     * Reject a frame whose size is known from its headers.
+     *
+     * @param size frame size in bytes
+     * @throws StompFrameTooLargeException if the frame is larger than the maximum
+     */
+    void checkFrameSize(long size) {
+        if (size > maxFrameSize) {
+            throw new StompFrameTooLargeException(size, maxFrameSize);
+        }
+    }
+
+    /**
+     * Whether a body of the given length is spilled.
+     */
+    boolean spills(int contentLength) {
+        return contentLength >= spillThreshold;
+    }
+
+    /**
+     * Start spilling the body of a frame whose headers have been decoded.
+     *
+     * @param frame         frame with headers
+     * @param contentLength body length
+     */
+    void spill(StompFrame frame, int contentLength) {
+        spill = new StompBodySpill(frame, contentLength, spillDirectory);
+    }
+
+    /**
+     * Whether the headers of an incomplete frame have to be decoded before its terminator arrives, to reject or spill
+     * the frame early.
+     */
+    private boolean inspectsHeaders() {
+        return maxFrameSize != Integer.MAX_VALUE || spillThreshold != Integer.MAX_VALUE;
+    }
+
+    /**
+     * Reject an incomplete frame whose pending bytes alone exceed the maximum size.
+     */
+    private void checkPending() {
+        if (buffer.remaining() > maxFrameSize) {
+            long pending = buffer.remaining();
+            reset();
+            throw new StompFrameTooLargeException(pending, maxFrameSize);
+        }
+    }
+
+    /**
+     * Decode all complete frames from the source, leaving its position at the start of the remaining data.
+     */
+    private List<StompFrame> decodeFrames(ByteBuffer source) {
+        List<StompFrame> frames = null;
+        try {
+            while (true) {
+                StompFrame frame;
+                if (spill != null) {
+                    frame = spill.fill(source);
+                    if (frame == null) {
+                        break;
+                    }
+                    spill = null;
+                } else {
+                    skipEol(source);
+                    if (!source.hasRemaining()) {
+                        break;
+                    }
+                    frame = StompFrame.decode(source, this);
+                    if (frame == null) {
+                        if (spill != null) {
+                            continue;
+                        }
+                        break;
+                    }
+                }
+                if (frames == null) {
+                    frames = new ArrayList<>(2);
+                }
+                frames.add(frame);
+            }
+        } catch (RuntimeException e) {
+            reset();
+            source.position(source.limit());
+            throw e;
+        }
+        return frames != null ? frames : Collections.<StompFrame>emptyList();
+    }
+
+    private static void skipEol(ByteBuffer source) {
+        int pos = source.position();
+        int limit = source.limit();
+        while (pos < limit && (source.get(pos) == '\n' || source.get(pos) == '\r')) {
+            pos++;
+        }
+        source.position(pos);
+    }
+
+    private static boolean containsNul(ByteBuffer chunk) {
+        for (int i = chunk.position(); i < chunk.limit(); i++) {
+            if (chunk.get(i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void append(ByteBuffer chunk) {
+        ensureWritable(chunk.remaining());
+        int pos = buffer.position();
+        buffer.limit(buffer.limit() + chunk.remaining());
+        buffer.position(buffer.limit() - chunk.remaining());
+        buffer.put(chunk);
+        buffer.position(pos);
+    }
+
+    private void append(String chunk) {
+        CharBuffer chars = CharBuffer.wrap(chunk);
+        ensureWritable(chars.remaining());
+        while (true) {
+            int pos = buffer.position();
+            buffer.position(buffer.limit());
+            buffer.limit(buffer.capacity());
+            CoderResult result = encoder.encode(chars, buffer, true);
+            buffer.limit(buffer.position());
+            buffer.position(pos);
+            if (result.isUnderflow()) {
+                break;
+            }
+            if (result.isOverflow()) {
+                ensureWritable(Math.max(chars.remaining(), 16));
+            } else {
+                encoder.reset();
+                throw new IllegalArgumentException("Unable to encode STOMP data: " + result);
+            }
+        }
+        encoder.reset();
+    }
+
+    /**
+     * Make room for at least {@code length} bytes after the pending data.
+     */
+    private void ensureWritable(int length) {
+        if (buffer.capacity() - buffer.limit() >= length) {
+            return;
+        }
+        int pending = buffer.remaining();
+        if (buffer.capacity() - pending >= length) {
+            buffer.compact();
+            buffer.flip();
+            return;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, pending + length));
+        grown.put(buffer);
+        grown.flip();
+        buffer = grown;
+    }
+}
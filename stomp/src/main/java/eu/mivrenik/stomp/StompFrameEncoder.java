@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * STOMP frame encoder writing UTF-8 straight into a reusable buffer.
+ * <p>
+ * Frames are either built with {@link #begin(StompCommand)}, {@code header(...)} calls and one of the {@code end(...)}
+ * methods, or encoded from an existing {@link StompFrame}. No intermediate strings or maps are created; command and
+ * well-known header names are written from pre-encoded bytes.
+ * <p>
+ * The returned buffer is owned by the encoder and is only valid until the next frame is started. Instances are not
+ * thread-safe.
+ */
+public class StompFrameEncoder {
+    private static final int DEFAULT_INITIAL_CAPACITY = 1024;
+    private static final int DEFAULT_MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final byte[] CONTENT_LENGTH = StompHeader.CONTENT_LENGTH.bytes;
+    private static final StompHeader[] KNOWN_HEADERS = StompHeader.values();
+
+    private final int initialCapacity;
+    private final int maxRetainedCapacity;
+
+    private ByteBuffer buffer;
+
+    /**
+     * Whether header names and values of the current frame are escaped.
+     */
+    private boolean escaped;
+
+    public StompFrameEncoder() {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_MAX_RETAINED_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity     initial buffer size
+     * @param maxRetainedCapacity buffers grown above this size are dropped once the frame has been consumed
+     */
+    public StompFrameEncoder(int initialCapacity, int maxRetainedCapacity) {
+        this.initialCapacity = initialCapacity;
+        this.maxRetainedCapacity = maxRetainedCapacity;
+        this.buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    /**
+     * Start a new frame.
+     *
+     * @param command STOMP command
+     * @return this encoder
+     */
+    public StompFrameEncoder begin(StompCommand command) {
+        if (buffer.capacity() > maxRetainedCapacity) {
+            buffer = ByteBuffer.allocate(initialCapacity);
+        } else {
+            buffer.clear();
+        }
+        escaped = command.escapesHeaders();
+
+        put(command.bytes);
+        buffer.put((byte) '\n');
+        return this;
+    }
+
+    /**
+     * Write a well-known header.
+     *
+     * @param header header
+     * @param value  header value
+     * @return this encoder
+     */
+    public StompFrameEncoder header(StompHeader header, String value) {
+        put(header.bytes);
+        buffer.put((byte) ':');
+        putString(value, escaped);
+        buffer.put((byte) '\n');
+        return this;
+    }
+
+    /**
+     * Write a well-known header with a numeric value.
+     *
+     * @param header header
+     * @param value  header value
+     * @return this encoder
+     */
+    public StompFrameEncoder header(StompHeader header, long value) {
+        put(header.bytes);
+        buffer.put((byte) ':');
+        putLong(value);
+        buffer.put((byte) '\n');
+        return this;
+    }
+
+    /**
+     * Write a custom header.
+     *
+     * @param name  header name
+     * @param value header value
+     * @return this encoder
+     */
+    public StompFrameEncoder header(String name, String value) {
+        putString(name, escaped);
+        ensureRemaining(1);
+        buffer.put((byte) ':');
+        putString(value, escaped);
+        ensureRemaining(1);
+        buffer.put((byte) '\n');
+        return this;
+    }
+
+    /**
+     * Write all headers from the map except {@code content-length}, which is derived from the body.
+     *
+     * @param headers (optional) headers
+     * @return this encoder
+     */
+    public StompFrameEncoder headers(Map<String, String> headers) {
+        if (headers == null) {
+            return this;
+        }
+        String contentLength = StompHeader.CONTENT_LENGTH.toString();
+        if (headers instanceof StompHeaders) {
+            return headers((StompHeaders) headers);
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (!contentLength.equals(header.getKey())) {
+                header(header.getKey(), header.getValue());
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Write all headers except {@code content-length}, which is derived from the body. Well-known header names are
+     * written from pre-encoded bytes.
+     *
+     * @param headers (optional) headers
+     * @return this encoder
+     */
+    public StompFrameEncoder headers(StompHeaders headers) {
+        if (headers == null) {
+            return this;
+        }
+        for (StompHeader header : KNOWN_HEADERS) {
+            String value = headers.known[header.ordinal()];
+            if (value != null && header != StompHeader.CONTENT_LENGTH) {
+                header(header, value);
+            }
+        }
+        for (int i = 0; i < headers.customSize * 2; i += 2) {
+            header(headers.custom[i], headers.custom[i + 1]);
+        }
+        return this;
+    }
+
+    /**
+     * Finish a frame without a body.
+     *
+     * @return encoded frame, ready to be read
+     */
+    public ByteBuffer end() {
+        ensureRemaining(2);
+        buffer.put((byte) '\n');
+        buffer.put((byte) 0);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Finish a frame with a text body. A matching {@code content-length} header is written.
+     *
+     * @param body (optional) body text
+     * @return encoded frame, ready to be read
+     */
+    public ByteBuffer end(String body) {
+        if (body == null) {
+            return end();
+        }
+        put(CONTENT_LENGTH);
+        buffer.put((byte) ':');
+        putLong(utf8Length(body));
+        buffer.put((byte) '\n');
+        buffer.put((byte) '\n');
+        putString(body, false);
+        ensureRemaining(1);
+        buffer.put((byte) 0);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Finish a frame with a binary body. A matching {@code content-length} header is written.
+     *
+     * @param body (optional) body bytes
+     * @return encoded frame, ready to be read
+     */
+    public ByteBuffer end(byte[] body) {
+        if (body == null) {
+            return end();
+        }
+        return end(body, 0, body.length);
+    }
+
+    /**
+     * Finish a frame with a binary body taken from part of an array, e.g. a reusable scratch buffer. A matching
+     * {@code content-length} header is written.
+     *
+     * @param body   body bytes
+     * @param offset offset of the body in the array
+     * @param length body length
+     * @return encoded frame, ready to be read
+     */
+    public ByteBuffer end(byte[] body, int offset, int length) {
+        put(CONTENT_LENGTH);
+        buffer.put((byte) ':');
+        putLong(length);
+        buffer.put((byte) '\n');
+        buffer.put((byte) '\n');
+        ensureRemaining(length + 1);
+        buffer.put(body, offset, length);
+        buffer.put((byte) 0);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Finish a frame with a binary body read from a buffer, e.g. a memory-mapped one. The buffer's position is not
+     * changed. A matching {@code content-length} header is written.
+     *
+     * @param body body bytes between position and limit
+     * @return encoded frame, ready to be read
+     */
+    public ByteBuffer end(ByteBuffer body) {
+        ByteBuffer source = body.duplicate();
+        put(CONTENT_LENGTH);
+        buffer.put((byte) ':');
+        putLong(source.remaining());
+        buffer.put((byte) '\n');
+        buffer.put((byte) '\n');
+        ensureRemaining(source.remaining() + 1);
+        buffer.put(source);
+        buffer.put((byte) 0);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Finish the headers of a frame whose body is written separately, e.g. streamed from a file. A
+     * {@code content-length} header is written; the body must be followed by a NUL byte.
+     *
+     * @param contentLength body length
+     * @return encoded headers, ready to be read
+     */
+    public ByteBuffer endHeaders(long contentLength) {
+        put(CONTENT_LENGTH);
+        buffer.put((byte) ':');
+        putLong(contentLength);
+        buffer.put((byte) '\n');
+        buffer.put((byte) '\n');
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encode an existing frame.
+     *
+     * @param frame STOMP frame
+     * @return encoded frame, ready to be read
+     */
+    public ByteBuffer encode(StompFrame frame) {
+        begin(frame.getCommand()).headers(frame.getHeaders());
+        if (frame.isBodyMapped()) {
+            return end(frame.getBodyBuffer());
+        }
+        return frame.hasBinaryBody() ? end(frame.getBodyBytes()) : end(frame.getBody());
+    }
+
+    /**
+     * Write raw bytes, leaving room for a short separator after them.
+     */
+    private void put(byte[] bytes) {
+        ensureRemaining(bytes.length + 2);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Write a decimal number, leaving room for a short separator after it.
+     */
+    private void putLong(long value) {
+        ensureRemaining(22);
+        if (value == 0) {
+            buffer.put((byte) '0');
+            return;
+        }
+        if (value < 0) {
+            buffer.put((byte) '-');
+        } else {
+            value = -value;
+        }
+        // Digits are produced from the negative value so Long.MIN_VALUE needs no special case
+        int start = buffer.position();
+        while (value != 0) {
+            buffer.put((byte) ('0' - (value % 10)));
+            value /= 10;
+        }
+        for (int i = start, j = buffer.position() - 1; i < j; i++, j--) {
+            byte b = buffer.get(i);
+            buffer.put(i, buffer.get(j));
+            buffer.put(j, b);
+        }
+    }
+
+    /**
+     * Write a string as UTF-8, optionally applying STOMP 1.2 header escaping.
+     */
+    private void putString(String value, boolean escape) {
+        int length = value.length();
+        // Three bytes per char covers both multi-byte sequences and two-byte escapes
+        ensureRemaining(length * 3 + 2);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (escape) {
+                    switch (c) {
+                        case '\\':
+                            buffer.put((byte) '\\').put((byte) '\\');
+                            continue;
+                        case '\n':
+                            buffer.put((byte) '\\').put((byte) 'n');
+                            continue;
+                        case '\r':
+                            buffer.put((byte) '\\').put((byte) 'r');
+                            continue;
+                        case ':':
+                            buffer.put((byte) '\\').put((byte) 'c');
+                            continue;
+                        default:
+                            break;
+                    }
+                }
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xc0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte) (0xf0 | (cp >> 18)));
+                buffer.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                buffer.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (cp & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, replaced the same way String.getBytes does
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xe0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    /**
+     * Length of a string encoded as UTF-8. Unpaired surrogates count as the single replacement byte
+     * {@link String#getBytes(java.nio.charset.Charset)} writes for them.
+     */
+    static int utf8Length(String value) {
+        int length = value.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes += 1;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private void ensureRemaining(int length) {
+        if (buffer.remaining() >= length) {
+            return;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+}
@@ -21,16 +21,22 @@
  */
 package eu.mivrenik.stomp;
 
+import java.nio.ByteBuffer;
+
 /**
  * STOMP headers.
  */
 public enum StompHeader {
     ACCEPT_VERSION("accept-version"),
+    ACK("ack"),
+    CONTENT_ENCODING("content-encoding"),
     CONTENT_LENGTH("content-length"),
     CONTENT_TYPE("content-type"),
     DESTINATION("destination"),
+    HEART_BEAT("heart-beat"),
     HOST("host"),
     ID("id"),
+    MESSAGE("message"),
     MESSAGE_ID("message-id"),
     RECEIPT_ID("receipt-id"),
     RECEIPT("receipt"),
@@ -39,8 +45,91 @@ public enum StompHeader {
 
     private final String value;
 
+    /**
+     * UTF-8 encoded value for the frame encoder.
+     */
+    final byte[] bytes;
+
+    /**
+     * Headers grouped by name length for allocation-free lookups.
+     */
+    private static final StompHeader[][] BY_LENGTH;
+
+    static {
+        int maxLength = 0;
+        for (StompHeader h : values()) {
+            maxLength = Math.max(maxLength, h.value.length());
+        }
+        BY_LENGTH = new StompHeader[maxLength + 1][0];
+        for (StompHeader h : values()) {
+            StompHeader[] group = BY_LENGTH[h.value.length()];
+            StompHeader[] grown = new StompHeader[group.length + 1];
+            System.arraycopy(group, 0, grown, 0, group.length);
+            grown[group.length] = h;
+            BY_LENGTH[h.value.length()] = grown;
+        }
+    }
+
+    /**
+     * Find a well-known header by name.
+     *
+     * @return header or {@code null} if the name is not well-known
+     */
+    static StompHeader lookup(String name) {
+        if (name.length() >= BY_LENGTH.length) {
+            return null;
+        }
+        for (StompHeader h : BY_LENGTH[name.length()]) {
+            if (h.value.equals(name)) {
+                return h;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find a well-known header by the name between {@code from} and {@code to} in the string.
+     *
+     * @return header or {@code null} if the name is not well-known
+     */
+    static StompHeader lookup(String data, int from, int to) {
+        int length = to - from;
+        if (length >= BY_LENGTH.length) {
+            return null;
+        }
+        for (StompHeader h : BY_LENGTH[length]) {
+            if (data.regionMatches(from, h.value, 0, length)) {
+                return h;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find a well-known header by the UTF-8 name between {@code from} and {@code to} in the buffer.
+     *
+     * @return header or {@code null} if the name is not well-known
+     */
+    static StompHeader lookup(ByteBuffer buffer, int from, int to) {
+        int length = to - from;
+        if (length >= BY_LENGTH.length) {
+            return null;
+        }
+        candidates:
+        for (StompHeader h : BY_LENGTH[length]) {
+            for (int i = 0; i < length; i++) {
+                if (buffer.get(from + i) != h.bytes[i]) {
+                    continue candidates;
+                }
+            }
+            return h;
+        }
+        return null;
+    }
+
     private StompHeader(String value) {
         this.value = value;
+        this.bytes = value.getBytes(StompFrame.UTF_8);
     }
 
     @Override
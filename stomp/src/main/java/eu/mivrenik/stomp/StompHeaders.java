@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Compact STOMP frame headers.
+ * <p>
+ * Values of well-known {@link StompHeader} keys are kept in slots indexed by the enum ordinal, so
+ * {@link #get(StompHeader)} needs neither hashing nor string comparison. Custom headers are kept as a flat array of
+ * key/value pairs in insertion order. A {@code null} value means the header is absent.
+ */
+public class StompHeaders extends AbstractMap<String, String> {
+    private static final StompHeader[] KNOWN = StompHeader.values();
+    private static final int INITIAL_CUSTOM_CAPACITY = 4;
+
+    /**
+     * Well-known header values indexed by {@link StompHeader#ordinal()}.
+     */
+    final String[] known = new String[KNOWN.length];
+    private int knownSize;
+
+    /**
+     * Custom headers as {@code key0, value0, key1, value1, ...}.
+     */
+    String[] custom;
+    int customSize;
+
+    private Set<Entry<String, String>> entrySet;
+
+    public StompHeaders() {
+    }
+
+    /**
+     * Create headers holding a copy of the given map.
+     *
+     * @param headers (optional) headers to copy
+     */
+    public StompHeaders(Map<String, String> headers) {
+        if (headers instanceof StompHeaders) {
+            StompHeaders source = (StompHeaders) headers;
+            System.arraycopy(source.known, 0, known, 0, known.length);
+            knownSize = source.knownSize;
+            if (source.customSize > 0) {
+                custom = new String[source.customSize * 2];
+                System.arraycopy(source.custom, 0, custom, 0, custom.length);
+                customSize = source.customSize;
+            }
+        } else if (headers != null) {
+            for (Entry<String, String> header : headers.entrySet()) {
+                put(header.getKey(), header.getValue());
+            }
+        }
+    }
+
+    /**
+     * Get a well-known header value.
+     *
+     * @param header header
+     * @return header value or {@code null} if absent
+     */
+    public String get(StompHeader header) {
+        return known[header.ordinal()];
+    }
+
+    /**
+     * Set a well-known header value.
+     *
+     * @param header header
+     * @param value  header value, {@code null} removes the header
+     * @return previous value or {@code null} if absent
+     */
+    public String put(StompHeader header, String value) {
+        int i = header.ordinal();
+        String previous = known[i];
+        known[i] = value;
+        if (previous == null && value != null) {
+            knownSize++;
+        } else if (previous != null && value == null) {
+            knownSize--;
+        }
+        return previous;
+    }
+
+    /**
+     * Remove a well-known header.
+     *
+     * @param header header
+     * @return previous value or {@code null} if absent
+     */
+    public String remove(StompHeader header) {
+        return put(header, null);
+    }
+
+    @Override
+    public String get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        StompHeader header = StompHeader.lookup((String) key);
+        if (header != null) {
+            return known[header.ordinal()];
+        }
+        int i = indexOfCustom((String) key);
+        return i >= 0 ? custom[i + 1] : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public String put(String key, String value) {
+        if (key == null) {
+            throw new NullPointerException("STOMP header name must not be null");
+        }
+        StompHeader header = StompHeader.lookup(key);
+        if (header != null) {
+            return put(header, value);
+        }
+        int i = indexOfCustom(key);
+        if (i >= 0) {
+            String previous = custom[i + 1];
+            if (value == null) {
+                removeCustomAt(i);
+            } else {
+                custom[i + 1] = value;
+            }
+            return previous;
+        }
+        if (value != null) {
+            addCustom(key, value);
+        }
+        return null;
+    }
+
+    @Override
+    public String remove(Object key) {
+        return key instanceof String ? put((String) key, null) : null;
+    }
+
+    @Override
+    public int size() {
+        return knownSize + customSize;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < known.length; i++) {
+            known[i] = null;
+        }
+        knownSize = 0;
+        for (int i = 0; i < customSize * 2; i++) {
+            custom[i] = null;
+        }
+        customSize = 0;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Entry<String, String>>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new HeaderIterator();
+                }
+
+                @Override
+                public int size() {
+                    return StompHeaders.this.size();
+                }
+
+                @Override
+                public void clear() {
+                    StompHeaders.this.clear();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    /**
+     * Add a header unless it is already present. STOMP uses the first occurrence of a repeated header.
+     */
+    void addIfAbsent(StompHeader header, String value) {
+        if (known[header.ordinal()] == null) {
+            put(header, value);
+        }
+    }
+
+    /**
+     * Add a custom header unless it is already present.
+     */
+    void addIfAbsent(String key, String value) {
+        if (indexOfCustom(key) < 0) {
+            addCustom(key, value);
+        }
+    }
+
+    private int indexOfCustom(String key) {
+        for (int i = 0; i < customSize * 2; i += 2) {
+            if (custom[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void addCustom(String key, String value) {
+        if (custom == null) {
+            custom = new String[INITIAL_CUSTOM_CAPACITY * 2];
+        } else if (customSize * 2 == custom.length) {
+            String[] grown = new String[custom.length * 2];
+            System.arraycopy(custom, 0, grown, 0, custom.length);
+            custom = grown;
+        }
+        custom[customSize * 2] = key;
+        custom[customSize * 2 + 1] = value;
+        customSize++;
+    }
+
+    private void removeCustomAt(int i) {
+        int end = customSize * 2;
+        System.arraycopy(custom, i + 2, custom, i, end - i - 2);
+        custom[end - 2] = null;
+        custom[end - 1] = null;
+        customSize--;
+    }
+
+    /**
+     * Iterates well-known headers in enum order, then custom headers in insertion order.
+     * Positions below {@code KNOWN.length} are enum slots, the rest are custom pair indices.
+     */
+    private class HeaderIterator implements Iterator<Entry<String, String>> {
+        private int next = advance(0);
+        private int current = -1;
+
+        private int advance(int from) {
+            while (from < KNOWN.length && known[from] == null) {
+                from++;
+            }
+            return from;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < KNOWN.length + customSize;
+        }
+
+        @Override
+        public Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            current = next;
+            next = advance(next + 1);
+            return new HeaderEntry(current);
+        }
+
+        @Override
+        public void remove() {
+            if (current < 0) {
+                throw new IllegalStateException();
+            }
+            if (current < KNOWN.length) {
+                put(KNOWN[current], null);
+            } else {
+                removeCustomAt((current - KNOWN.length) * 2);
+                next--;
+            }
+            current = -1;
+        }
+    }
+
+    private class HeaderEntry implements Entry<String, String> {
+        private final int position;
+
+        HeaderEntry(int position) {
+            this.position = position;
+        }
+
+        @Override
+        public String getKey() {
+            return position < KNOWN.length
+                    ? KNOWN[position].toString()
+                    : custom[(position - KNOWN.length) * 2];
+        }
+
+        @Override
+        public String getValue() {
+            return position < KNOWN.length
+                    ? known[position]
+                    : custom[(position - KNOWN.length) * 2 + 1];
+        }
+
+        @Override
+        public String setValue(String value) {
+            if (value == null) {
+                throw new NullPointerException("Use remove() to drop a STOMP header");
+            }
+            String previous = getValue();
+            if (position < KNOWN.length) {
+                known[position] = value;
+            } else {
+                custom[(position - KNOWN.length) * 2 + 1] = value;
+            }
+            return previous;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            return getKey().equals(e.getKey()) && getValue().equals(e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return getKey().hashCode() ^ getValue().hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2016 Andrejs Mivreņiks
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.mivrenik.stomp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class StompFrameDecoderTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_FRAME_SIZE = 64;
+
+    private StompFrameDecoder decoder;
+
+    @Before
+    public void setUp() {
+        decoder = new StompFrameDecoder();
+        decoder.setMaxFrameSize(MAX_FRAME_SIZE);
+    }
+
+    @Test
+    public void decodesFramesWithinMaximumSize() {
+        List<StompFrame> frames = decoder.decode(bytes("SEND\ndestination:/a\ncontent-length:2\n\nhi\0"
+                + "SEND\ndestination:/b\n\nho\0"));
+
+        assertEquals(2, frames.size());
+        assertEquals("hi", frames.get(0).getBody());
+        assertEquals("ho", frames.get(1).getBody());
+    }
+
+    @Test
+    public void rejectsFrameWithContentLengthBeforeBodyArrives() {
+        try {
+            decoder.decode(bytes("SEND\ndestination:/a\ncontent-length:1000\n\n"));
+            fail("Expected StompFrameTooLargeException");
+        } catch (StompFrameTooLargeException e) {
+            assertEquals(MAX_FRAME_SIZE, e.getMaxSize());
+        }
+    }
+
+    @Test
+    public void rejectsCompleteFrameWithoutContentLength() {
+        String header = "x-padding:" + new String(new char[MAX_FRAME_SIZE]).replace('\0', 'x') + "\n";
+        try {
+            decoder.decode(bytes("SEND\ndestination:/a\n" + header + "\n\0"));
+            fail("Expected StompFrameTooLargeException");
+        } catch (StompFrameTooLargeException e) {
+            assertEquals(MAX_FRAME_SIZE, e.getMaxSize());
+        }
+    }
+
+    @Test
+    public void rejectsCompleteTextFrameWithoutContentLength() {
+        String body = new String(new char[MAX_FRAME_SIZE]).replace('\0', 'x');
+        try {
+            decoder.decode("SEND\ndestination:/a\n\n" + body + "\0");
+            fail("Expected StompFrameTooLargeException");
+        } catch (StompFrameTooLargeException e) {
+            assertEquals(MAX_FRAME_SIZE, e.getMaxSize());
+        }
+    }
+
+    @Test
+    public void decodesNextFrameAfterRejection() {
+        String body = new String(new char[MAX_FRAME_SIZE]).replace('\0', 'x');
+        try {
+            decoder.decode(bytes("SEND\ndestination:/a\n\n" + body + "\0"));
+            fail("Expected StompFrameTooLargeException");
+        } catch (StompFrameTooLargeException expected) {
+            // Pending data is discarded
+        }
+
+        List<StompFrame> frames = decoder.decode(bytes("SEND\ndestination:/a\n\nok\0"));
+        assertEquals(1, frames.size());
+        assertEquals("ok", frames.get(0).getBody());
+    }
+
+    private static ByteBuffer bytes(String data) {
+        return ByteBuffer.wrap(data.getBytes(UTF_8));
+    }
+}